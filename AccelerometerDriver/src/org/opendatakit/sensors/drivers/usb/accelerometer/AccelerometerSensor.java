@@ -36,6 +36,10 @@ public class AccelerometerSensor extends AbstractDriverBaseV2 {
 	private static final String Y_VALUE = "y-value";
 	private static final String Z_VALUE = "z-value";
 	private static final String TIMESTAMP = "series-timestamp";
+	private static final String PITCH = "pitch";
+	private static final String ROLL = "roll";
+	private static final String ACTIVE_RANGE = "range";
+	private static final String RANGE_REQUEST = "range-request";
 	
 	private static final String SAMPLING_RATE = "SR";
 	private static final String READ_RATE = "RR";
@@ -46,9 +50,35 @@ public class AccelerometerSensor extends AbstractDriverBaseV2 {
 	private static final String OFFSETY = "OY";
 	private static final String OFFSETZ = "OZ";
 	private static final String RANGE = "RA";
+	private static final String PACKED_MODE = "PK";
+	
+	// driver side settings, nothing is sent to the bridge for these
+	private static final String ORIENTATION_DECIMATION = "OD";
+	private static final String ORIENTATION_FILTER = "OF";
+	private static final String AUTO_RANGE = "AR";
+	private static final String READ_RATE_MIN = "RL";
+	private static final String READ_RATE_MAX = "RH";
+	private static final float DEFAULT_ORIENTATION_FILTER = 0.2F;
 	
 	private static final String TAG = "AccelerometerSensor";
 
+	// unpacked: 2 bytes for each of x, y and z
+	private static final int SAMPLE_SIZE = 6;
+	// packed mode: 3 bytes carry a pair of 12 bit values, so 9 bytes hold two x/y/z records
+	private static final int PACKED_BYTES_PER_PAIR = 3;
+	private static final int PACKED_BYTES_PER_BLOCK = 9;
+	private static final int PACKED_RECORDS_PER_BLOCK = 2;
+
+	private final OrientationFilter orientation = new OrientationFilter(DEFAULT_ORIENTATION_FILTER, 0);
+	private final AutoRangeController autoRange = new AutoRangeController();
+	private final ReadRateController rateController = new ReadRateController();
+	private final PendingPackets pending = new PendingPackets();
+
+	private boolean packedMode = false;
+	private int[] unpackedValues = new int[0];
+	// second record of a packed block when maxNumReadings cut between the two
+	private Bundle heldRecord = null;
+
 	public AccelerometerSensor() {
 		super();
 		
@@ -62,12 +92,23 @@ public class AccelerometerSensor extends AbstractDriverBaseV2 {
 		sensorParams.add(new SensorParameter(OFFSETY, SensorParameter.Type.BYTE, SensorParameter.Purpose.CONFIG, "Set the offset of the accelometer in the Y direction"));
 		sensorParams.add(new SensorParameter(OFFSETZ, SensorParameter.Type.BYTE, SensorParameter.Purpose.CONFIG, "Set the offset of the accelometer in the Z direction"));
 		sensorParams.add(new SensorParameter(RANGE, SensorParameter.Type.BYTE, SensorParameter.Purpose.CONFIG, "Configure the Accelerometer Range"));
+		sensorParams.add(new SensorParameter(PACKED_MODE, SensorParameter.Type.BYTE, SensorParameter.Purpose.CONFIG, "Packed 12-bit burst mode (1 enables, 0 disables)"));
+		sensorParams.add(new SensorParameter(ORIENTATION_DECIMATION, SensorParameter.Type.INTEGER, SensorParameter.Purpose.CONFIG, "Report pitch/roll every N samples (0 disables)"));
+		sensorParams.add(new SensorParameter(ORIENTATION_FILTER, SensorParameter.Type.FLOAT, SensorParameter.Purpose.CONFIG, "Low-pass smoothing factor (0-1] applied before computing pitch/roll"));
+		sensorParams.add(new SensorParameter(AUTO_RANGE, SensorParameter.Type.BYTE, SensorParameter.Purpose.CONFIG, "Highest RA value auto-ranging may select (0 disables)"));
+		sensorParams.add(new SensorParameter(READ_RATE_MIN, SensorParameter.Type.INTEGER, SensorParameter.Purpose.CONFIG, "Lowest read rate the driver suggests"));
+		sensorParams.add(new SensorParameter(READ_RATE_MAX, SensorParameter.Type.INTEGER, SensorParameter.Purpose.CONFIG, "Highest read rate the driver suggests, 0 disables suggestions"));
 		
 		// data reporting parameters
 		sensorParams.add(new SensorParameter(X_VALUE, SensorParameter.Type.INTEGER, SensorParameter.Purpose.DATA, "Accelerometer value on X-axis"));
 		sensorParams.add(new SensorParameter(Y_VALUE, SensorParameter.Type.INTEGER, SensorParameter.Purpose.DATA, "Accelerometer value on Y-axis"));
 		sensorParams.add(new SensorParameter(Z_VALUE, SensorParameter.Type.INTEGER, SensorParameter.Purpose.DATA, "Accelerometer value on Z-axis"));
 		sensorParams.add(new SensorParameter(TIMESTAMP, SensorParameter.Type.LONG, SensorParameter.Purpose.DATA, "Timestamp of data"));
+		sensorParams.add(new SensorParameter(PITCH, SensorParameter.Type.FLOAT, SensorParameter.Purpose.DATA, "Pitch in degrees (only on decimated samples)"));
+		sensorParams.add(new SensorParameter(ROLL, SensorParameter.Type.FLOAT, SensorParameter.Purpose.DATA, "Roll in degrees (only on decimated samples)"));
+		sensorParams.add(new SensorParameter(ACTIVE_RANGE, SensorParameter.Type.INTEGER, SensorParameter.Purpose.DATA, "RA setting the sample was scaled with"));
+		sensorParams.add(new SensorParameter(RANGE_REQUEST, SensorParameter.Type.INTEGER, SensorParameter.Purpose.DATA, "RA value auto-ranging asks the caller to configure"));
+		sensorParams.add(new SensorParameter(ReadRateController.READ_RATE_REQUEST, SensorParameter.Type.INTEGER, SensorParameter.Purpose.DATA, "Read rate the driver suggests; apply it by configuring RR"));
 	}
 
 	@Override
@@ -92,6 +133,7 @@ public class AccelerometerSensor extends AbstractDriverBaseV2 {
 			return USBParamUtil.createSamplingRateMsg(samplingRate);
 		} else if (setting.equals(READ_RATE)) {
 			int readRate = params.getInt(READ_RATE); // reading rate
+			rateController.setActiveRate(readRate);
 			return USBParamUtil.createReadRateMsg(readRate);
 		} else if (setting.equals(TAREX)) {
 			return USBParamUtil.createMsg(TAREX, null);
@@ -106,7 +148,30 @@ public class AccelerometerSensor extends AbstractDriverBaseV2 {
 		} else if (setting.equals(OFFSETZ)) {
 			return USBParamUtil.createOneByteMsg(OFFSETZ, params.getByte(OFFSETZ));
 		}else if (setting.equals(RANGE)) {
-			return USBParamUtil.createOneByteMsg(RANGE, params.getByte(RANGE));
+			byte range = params.getByte(RANGE);
+			autoRange.setActiveRange(range);
+			return USBParamUtil.createOneByteMsg(RANGE, range);
+		} else if (setting.equals(AUTO_RANGE)) {
+			autoRange.setMaxRange(params.getByte(AUTO_RANGE));
+			return new byte[0];
+		} else if (setting.equals(READ_RATE_MIN)) {
+			rateController.setMinRate(params.getInt(READ_RATE_MIN));
+			return new byte[0];
+		} else if (setting.equals(READ_RATE_MAX)) {
+			rateController.setMaxRate(params.getInt(READ_RATE_MAX));
+			return new byte[0];
+		} else if (setting.equals(PACKED_MODE)) {
+			byte packed = params.getByte(PACKED_MODE);
+			packedMode = (packed != 0);
+			heldRecord = null;
+			return USBParamUtil.createOneByteMsg(PACKED_MODE, packed);
+		} else if (setting.equals(ORIENTATION_DECIMATION)) {
+			orientation.setDecimation(params.getInt(ORIENTATION_DECIMATION));
+			return new byte[0];
+		} else if (setting.equals(ORIENTATION_FILTER)) {
+			orientation.setAlpha(params.getFloat(ORIENTATION_FILTER));
+			orientation.reset();
+			return new byte[0];
 		}
 
 		throw new ParameterMissingException("Unknown Setting");
@@ -127,8 +192,20 @@ public class AccelerometerSensor extends AbstractDriverBaseV2 {
 	@Override
 	public SensorDataParseResponse getSensorData(long maxNumReadings,
 			List<SensorDataPacket> rawData, byte[] remainingData) {
+		// 0 or less means no limit
+		long budget = (maxNumReadings > 0) ? maxNumReadings : Long.MAX_VALUE;
+		// packets left over from earlier calls are queued in the driver, so
+		// remainingData is not used. They were sampled at the range active
+		// now, even if RA is changed before they are parsed
+		pending.addAll(rawData, autoRange.getActiveRange());
+		if (packedMode) {
+			return getPackedSensorData(budget);
+		}
+
 		List<Bundle> allData = new ArrayList<Bundle>();
-		for (SensorDataPacket pkt : rawData) {
+		int numParsed = 0;
+		SensorDataPacket pkt;
+		while (budget > 0 && (pkt = pending.next()) != null) {
 			// should have 15 bytes if doesn't don't know how to parse
 			Log.d(TAG, pkt.getPayload().length + " bytes rvcd. numsamples: "
 					+ pkt.getSizeOfSeries());
@@ -148,33 +225,161 @@ public class AccelerometerSensor extends AbstractDriverBaseV2 {
 			long seriesTimestamp = pkt.getTime();
 			byte[] sdpPayload = pkt.getPayload();
 			
-			for(int indexOffset=0; indexOffset < sdpPayload.length; indexOffset += 6) {
-				allData.add(extractReading(sdpPayload, indexOffset,seriesTimestamp));
+			int numSamples = sdpPayload.length / SAMPLE_SIZE;
+			int take = (int) Math.min(numSamples, budget);
+			budget -= take;
+			numParsed += take;
+			if (take < numSamples) {
+				pending.putBackTail(pkt, take * SAMPLE_SIZE, take);
+			}
+			
+			for(int indexOffset=0; indexOffset < take * SAMPLE_SIZE; indexOffset += SAMPLE_SIZE) {
+				allData.add(extractReading(sdpPayload, indexOffset,seriesTimestamp, pending.lastRange()));
+			}
+		}
+		return createResponse(allData, numParsed, !pending.isEmpty());
+	}
+
+	private SensorDataParseResponse getPackedSensorData(long budget) {
+		List<Bundle> allData = new ArrayList<Bundle>();
+		int numParsed = 0;
+		byte[] carry = null;
+		long carryTime = 0;
+
+		if (heldRecord != null && budget > 0) {
+			allData.add(heldRecord);
+			heldRecord = null;
+			budget--;
+			numParsed++;
+		}
+
+		SensorDataPacket pkt;
+		while (budget > 0 && (pkt = pending.next()) != null) {
+			byte[] sdpPayload = pkt.getPayload();
+			Log.d(TAG, sdpPayload.length + " packed bytes rvcd. numsamples: "
+					+ pkt.getSizeOfSeries());
+
+			// a block split across transfers is finished with the bytes left over from the last one
+			if (carry != null && carry.length > 0) {
+				byte[] joined = new byte[carry.length + sdpPayload.length];
+				System.arraycopy(carry, 0, joined, 0, carry.length);
+				System.arraycopy(sdpPayload, 0, joined, carry.length, sdpPayload.length);
+				sdpPayload = joined;
+			}
+
+			int availableBlocks = sdpPayload.length / PACKED_BYTES_PER_BLOCK;
+			// an odd limit decodes one more block and holds its second record back
+			long blocksWanted = budget / PACKED_RECORDS_PER_BLOCK + budget % PACKED_RECORDS_PER_BLOCK;
+			int numBlocks = (int) Math.min(availableBlocks, blocksWanted);
+			int numPairs = numBlocks * (PACKED_BYTES_PER_BLOCK / PACKED_BYTES_PER_PAIR);
+			if (unpackedValues.length < numPairs * 2) {
+				unpackedValues = new int[numPairs * 2];
 			}
+			unpack12(sdpPayload, 0, numPairs, unpackedValues);
+
+			long seriesTimestamp = pkt.getTime();
+			int numRecords = numBlocks * PACKED_RECORDS_PER_BLOCK;
+			int numEmitted = (int) Math.min(numRecords, budget);
+			budget = (numBlocks < availableBlocks) ? 0 : budget - numEmitted;
+			numParsed += numEmitted;
+			for (int i = 0; i < numRecords; i++) {
+				Bundle reading = buildReading(unpackedValues[3 * i], unpackedValues[3 * i + 1],
+						unpackedValues[3 * i + 2], seriesTimestamp, pending.lastRange());
+				if (i < numEmitted) {
+					allData.add(reading);
+				} else {
+					heldRecord = reading;
+				}
+			}
+
+			int consumed = numBlocks * PACKED_BYTES_PER_BLOCK;
+			carry = new byte[sdpPayload.length - consumed];
+			System.arraycopy(sdpPayload, consumed, carry, 0, carry.length);
+			carryTime = seriesTimestamp;
+		}
+		// an incomplete block on its own is not more data to read
+		boolean dataLeft = heldRecord != null || !pending.isEmpty()
+				|| (carry != null && carry.length >= PACKED_BYTES_PER_BLOCK);
+		if (carry != null && carry.length > 0) {
+			// the rest of the transfer, or an incomplete block, goes first in
+			// the next call and keeps the time of the transfer it came from
+			pending.putBack(new SensorDataPacket(carry, carryTime, 0));
+		}
+		return createResponse(allData, numParsed, dataLeft);
+	}
+
+	private SensorDataParseResponse createResponse(List<Bundle> allData, int numParsed, boolean dataLeft) {
+		// samples, not bundles: orientation and range requests ride on readings
+		int requestedRate = rateController.update(numParsed, dataLeft);
+		if (requestedRate > 0) {
+			// like range-request, the caller applies this by configuring RR
+			allData.add(ReadRateController.createRequest(requestedRate));
 		}
 		return new SensorDataParseResponse(allData, null);
 	}
 
-	private Bundle extractReading(byte [] data, int beginIndexOffset, long seriesTimestamp) {
-		int value;
+	/**
+	 * Unpacks pairs of signed 12 bit values stored in 3 bytes each:
+	 * byte 0 is the low 8 bits of the first value, the low nibble of byte 1
+	 * is its high 4 bits, the high nibble of byte 1 is the low 4 bits of the
+	 * second value and byte 2 is its high 8 bits.
+	 *
+	 * @return number of values written to dest
+	 */
+	static int unpack12(byte[] src, int offset, int numPairs, int[] dest) {
+		int in = offset;
+		int out = 0;
+		for (int i = 0; i < numPairs; i++) {
+			int b0 = src[in] & 0xff;
+			int b1 = src[in + 1] & 0xff;
+			int b2 = src[in + 2] & 0xff;
+			in += PACKED_BYTES_PER_PAIR;
+
+			// shift up to bit 31 and back down to sign extend the 12 bit value
+			dest[out++] = ((b0 | (b1 << 8)) << 20) >> 20;
+			dest[out++] = (((b1 >> 4) | (b2 << 4)) << 20) >> 20;
+		}
+		return out;
+	}
+
+	private Bundle extractReading(byte [] data, int beginIndexOffset, long seriesTimestamp, int range) {
+		int x = constructValue(data[beginIndexOffset+1], data[beginIndexOffset]);
+		int y = constructValue(data[beginIndexOffset+3], data[beginIndexOffset+2]);
+		int z = constructValue(data[beginIndexOffset+5], data[beginIndexOffset+4]);
+		return buildReading(x, y, z, seriesTimestamp, range);
+	}
+
+	private Bundle buildReading(int x, int y, int z, long seriesTimestamp, int range) {
 		Bundle parsedPkt = new Bundle();
 		
 		parsedPkt.putLong(TIMESTAMP, seriesTimestamp);
+		parsedPkt.putInt(ACTIVE_RANGE, range);
 
-		// get x value
-		value = constructValue(data[beginIndexOffset+1], data[beginIndexOffset]);
-		Log.d(TAG, "X Value: " + value);
-		parsedPkt.putInt(X_VALUE, value);
+		Log.d(TAG, "X Value: " + x);
+		parsedPkt.putInt(X_VALUE, x);
 
-		// get y value
-		value = constructValue(data[beginIndexOffset+3], data[beginIndexOffset+2]);
-		Log.d(TAG, "Y Value: " + value);
-		parsedPkt.putInt(Y_VALUE, value);
+		Log.d(TAG, "Y Value: " + y);
+		parsedPkt.putInt(Y_VALUE, y);
 
-		// get z value
-		value = constructValue(data[beginIndexOffset+5], data[beginIndexOffset+4]);
-		Log.d(TAG, "Z Value: " + value);
-		parsedPkt.putInt(Z_VALUE, value);
+		Log.d(TAG, "Z Value: " + z);
+		parsedPkt.putInt(Z_VALUE, z);
+
+		if (orientation.isEnabled() && orientation.update(x, y, z)) {
+			parsedPkt.putFloat(PITCH, orientation.getPitch());
+			parsedPkt.putFloat(ROLL, orientation.getRoll());
+		}
+
+		// samples from before a range change would fill the new window with
+		// levels measured at the old range
+		if (autoRange.isEnabled() && range == autoRange.getActiveRange()) {
+			// the driver cannot write to the bridge on its own, so the caller
+			// applies the request by configuring RA with the suggested value
+			int requestedRange = autoRange.update(x, y, z);
+			if (requestedRange >= 0) {
+				Log.d(TAG, "requesting range change to: " + requestedRange);
+				parsedPkt.putInt(RANGE_REQUEST, requestedRange);
+			}
+		}
 
 		return parsedPkt;
 	}
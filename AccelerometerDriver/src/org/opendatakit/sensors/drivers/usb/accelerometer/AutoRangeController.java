@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.usb.accelerometer;
+
+/**
+ * Watches a sliding window of samples and decides when the accelerometer RA
+ * setting should move. The range setting is treated as an index where each
+ * step up doubles the full scale, so a sample that stays below half of full
+ * scale (with some margin) would still fit one step down.
+ *
+ * The window is a ring of per-sample flags with running counts, so each
+ * sample costs O(1). Once a change is requested no further request is made
+ * until RA is actually sent to the device, and a full window then has to be
+ * seen at the new range before the next decision.
+ */
+class AutoRangeController {
+
+	static final int FULL_SCALE = 2047;
+
+	private static final int WINDOW_SIZE = 256;
+	// more than 1% of samples pinned at full scale moves the range up
+	private static final int SATURATED_LIMIT = WINDOW_SIZE / 100 + 1;
+	// every sample under 40% of full scale moves the range down
+	private static final int LOW_AMPLITUDE = (FULL_SCALE * 2) / 5;
+
+	private static final byte SATURATED = 0x01;
+	private static final byte LOW = 0x02;
+
+	private final byte[] window = new byte[WINDOW_SIZE];
+	private int windowIndex = 0;
+	private int windowFill = 0;
+	private int saturatedCnt = 0;
+	private int lowCnt = 0;
+
+	private int activeRange = 0;
+	private int maxRange = 0;
+	private boolean changePending = false;
+
+	boolean isEnabled() {
+		return maxRange > 0;
+	}
+
+	/**
+	 * @param maxRange highest range index the device supports, 0 disables
+	 *                 auto-ranging
+	 */
+	void setMaxRange(int maxRange) {
+		this.maxRange = (maxRange < 0) ? 0 : maxRange;
+		changePending = false;
+		clearWindow();
+	}
+
+	int getActiveRange() {
+		return activeRange;
+	}
+
+	/**
+	 * Called whenever RA is sent to the device, whether requested by this
+	 * controller or set explicitly.
+	 */
+	void setActiveRange(int range) {
+		activeRange = range;
+		changePending = false;
+		clearWindow();
+	}
+
+	/**
+	 * Feed one sample into the window.
+	 *
+	 * @return the range index to switch to, or -1 if no change is needed
+	 */
+	int update(int x, int y, int z) {
+		int peak = Math.max(Math.abs(x), Math.max(Math.abs(y), Math.abs(z)));
+
+		byte flags = 0;
+		if (peak >= FULL_SCALE) {
+			flags |= SATURATED;
+		} else if (peak < LOW_AMPLITUDE) {
+			flags |= LOW;
+		}
+
+		// drop the oldest sample once the window is full
+		if (windowFill == WINDOW_SIZE) {
+			byte old = window[windowIndex];
+			if ((old & SATURATED) != 0) {
+				saturatedCnt--;
+			} else if ((old & LOW) != 0) {
+				lowCnt--;
+			}
+		} else {
+			windowFill++;
+		}
+
+		window[windowIndex] = flags;
+		windowIndex = (windowIndex + 1) % WINDOW_SIZE;
+		if ((flags & SATURATED) != 0) {
+			saturatedCnt++;
+		} else if ((flags & LOW) != 0) {
+			lowCnt++;
+		}
+
+		if (changePending) {
+			return -1;
+		}
+
+		if (saturatedCnt >= SATURATED_LIMIT && activeRange < maxRange) {
+			changePending = true;
+			return activeRange + 1;
+		}
+
+		if (windowFill == WINDOW_SIZE && lowCnt == WINDOW_SIZE && activeRange > 0) {
+			changePending = true;
+			return activeRange - 1;
+		}
+
+		return -1;
+	}
+
+	private void clearWindow() {
+		windowIndex = 0;
+		windowFill = 0;
+		saturatedCnt = 0;
+		lowCnt = 0;
+	}
+}
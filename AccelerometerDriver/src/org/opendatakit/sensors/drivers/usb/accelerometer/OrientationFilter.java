@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.usb.accelerometer;
+
+/**
+ * Low-pass filters accelerometer samples and derives pitch and roll (in
+ * degrees) every decimation samples. State is kept between calls to
+ * getSensorData so the filter runs continuously across USB transfers.
+ */
+class OrientationFilter {
+
+	private float alpha;
+	private int decimation;
+
+	private float fx, fy, fz;
+	private boolean primed = false;
+	private int sampleCntr = 0;
+
+	private float pitch;
+	private float roll;
+
+	OrientationFilter(float alpha, int decimation) {
+		setAlpha(alpha);
+		setDecimation(decimation);
+	}
+
+	void setAlpha(float alpha) {
+		if (alpha <= 0.0F || alpha > 1.0F) {
+			alpha = 1.0F;
+		}
+		this.alpha = alpha;
+	}
+
+	void setDecimation(int decimation) {
+		this.decimation = (decimation < 0) ? 0 : decimation;
+		sampleCntr = 0;
+	}
+
+	boolean isEnabled() {
+		return decimation > 0;
+	}
+
+	void reset() {
+		primed = false;
+		sampleCntr = 0;
+	}
+
+	/**
+	 * Feed one sample through the filter.
+	 *
+	 * @return true if a new pitch/roll value is due for this sample
+	 */
+	boolean update(int x, int y, int z) {
+		if (!primed) {
+			fx = x;
+			fy = y;
+			fz = z;
+			primed = true;
+		} else {
+			fx += alpha * (x - fx);
+			fy += alpha * (y - fy);
+			fz += alpha * (z - fz);
+		}
+
+		if (++sampleCntr < decimation) {
+			return false;
+		}
+		sampleCntr = 0;
+
+		pitch = FastTrig.atan2(-fx, FastTrig.sqrt(fy * fy + fz * fz)) * FastTrig.RAD_TO_DEG;
+		roll = FastTrig.atan2(fy, fz) * FastTrig.RAD_TO_DEG;
+		return true;
+	}
+
+	float getPitch() {
+		return pitch;
+	}
+
+	float getRoll() {
+		return roll;
+	}
+}
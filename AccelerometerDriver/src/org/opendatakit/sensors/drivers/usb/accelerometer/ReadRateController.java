@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.usb.accelerometer;
+
+import org.opendatakit.sensors.DataSeries;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+/**
+ * Suggests RR (read rate) changes from the way the consumer pulls data. A
+ * consumer that polls often and gets only a sample or two per call is
+ * waiting on the bridge, so the read rate doubles towards the upper bound.
+ * A consumer that polls rarely, or cannot keep up so that data is left for
+ * the next call, gains nothing from frequent transfers, so the rate halves
+ * towards the lower bound to save power on both ends.
+ *
+ * A change needs several calls in a row pointing the same way. Once a change
+ * is requested no further request is made until RR is actually sent to the
+ * bridge, since the driver cannot write to the bridge on its own.
+ */
+class ReadRateController {
+
+	static final String MSG_TYPE_RATE = "rate";
+	static final String READ_RATE_REQUEST = "read-rate-request";
+
+	// polls further apart than this buffer on the bridge anyway
+	private static final long SLOW_POLL_MS = 5000;
+	// this few samples per poll means the consumer is waiting on the bridge
+	private static final int SMALL_BATCH = 2;
+	private static final int VOTES_TO_CHANGE = 3;
+	private static final int MAX_READ_RATE = 255;
+
+	private int minRate = 1;
+	private int maxRate = 0;
+	private int activeRate = 0;
+	private boolean changePending = false;
+
+	private long lastCall = -1;
+	private int upVotes = 0;
+	private int downVotes = 0;
+
+	boolean isEnabled() {
+		return maxRate > 0 && activeRate > 0;
+	}
+
+	/**
+	 * @param min lowest read rate to request, at least 1
+	 */
+	void setMinRate(int min) {
+		minRate = Math.min(Math.max(min, 1), MAX_READ_RATE);
+		resetVotes();
+	}
+
+	/**
+	 * @param max highest read rate to request, 0 disables the controller
+	 */
+	void setMaxRate(int max) {
+		maxRate = Math.min(Math.max(max, 0), MAX_READ_RATE);
+		resetVotes();
+	}
+
+	/**
+	 * Called whenever RR is sent to the bridge, whether requested by this
+	 * controller or set explicitly.
+	 */
+	void setActiveRate(int rate) {
+		activeRate = rate;
+		resetVotes();
+	}
+
+	private void resetVotes() {
+		changePending = false;
+		upVotes = 0;
+		downVotes = 0;
+	}
+
+	/**
+	 * Record one getSensorData call.
+	 *
+	 * @param numSamples  samples parsed by the call, however many bundles
+	 *                    they were reported in
+	 * @param dataLeft    true if data was left over for the next call
+	 * @return the read rate to switch to, or -1 if no change is needed
+	 */
+	int update(int numSamples, boolean dataLeft) {
+		long now = SystemClock.elapsedRealtime();
+		long interval = (lastCall < 0) ? 0 : now - lastCall;
+		lastCall = now;
+
+		if (!isEnabled() || changePending) {
+			return -1;
+		}
+
+		if (dataLeft || interval > SLOW_POLL_MS) {
+			downVotes++;
+			upVotes = 0;
+		} else if (numSamples <= SMALL_BATCH) {
+			upVotes++;
+			downVotes = 0;
+		} else {
+			upVotes = 0;
+			downVotes = 0;
+		}
+
+		if (downVotes >= VOTES_TO_CHANGE && activeRate > minRate) {
+			changePending = true;
+			return Math.max(minRate, activeRate / 2);
+		}
+		if (upVotes >= VOTES_TO_CHANGE && activeRate < maxRate && minRate <= maxRate) {
+			changePending = true;
+			return Math.min(maxRate, activeRate * 2);
+		}
+		return -1;
+	}
+
+	static Bundle createRequest(int readRate) {
+		Bundle request = new Bundle();
+		request.putString(DataSeries.MSG_TYPE, MSG_TYPE_RATE);
+		request.putInt(READ_RATE_REQUEST, readRate);
+		return request;
+	}
+}
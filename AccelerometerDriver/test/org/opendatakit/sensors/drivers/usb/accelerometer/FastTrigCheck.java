@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.usb.accelerometer;
+
+import java.util.Random;
+
+/**
+ * Measures the error of FastTrig against Math over every octant and a wide
+ * range of magnitudes, and the time per call of both. Fails if the error
+ * goes over the bounds below. The ForceDriver3Axis copy of FastTrig is the
+ * same code.
+ *
+ * Needs nothing from Android, from the project directory:
+ *
+ *   javac -d /tmp/fasttrig src/org/opendatakit/sensors/drivers/usb/accelerometer/FastTrig.java \
+ *       test/org/opendatakit/sensors/drivers/usb/accelerometer/FastTrigCheck.java
+ *   java -cp /tmp/fasttrig org.opendatakit.sensors.drivers.usb.accelerometer.FastTrigCheck
+ *
+ * Timings from a desktop JIT only show the ratio roughly, run it on a
+ * device for the numbers that matter.
+ */
+public class FastTrigCheck {
+
+	private static final double ATAN2_BOUND = 1.2e-5;
+	private static final double SQRT_BOUND = 4.8e-6;
+
+	private static final int NUM_SAMPLES = 1 << 20;
+	private static final int NUM_RUNS = 10;
+
+	// keeps the timed loops from being optimized away
+	private static volatile float sink;
+
+	public static void main(String[] args) {
+		// fixed seed so every run measures the same inputs
+		Random random = new Random(26);
+		float[] xs = new float[NUM_SAMPLES];
+		float[] ys = new float[NUM_SAMPLES];
+		float[] squares = new float[NUM_SAMPLES];
+		for (int i = 0; i < NUM_SAMPLES; i++) {
+			// magnitudes from 1e-3 to 1e4, the range of raw and calibrated readings
+			double scale = Math.pow(10, -3 + 7 * random.nextDouble());
+			double angle = 2 * Math.PI * random.nextDouble();
+			xs[i] = (float) (scale * Math.cos(angle));
+			ys[i] = (float) (scale * Math.sin(angle));
+			squares[i] = (float) Math.pow(10, -6 + 14 * random.nextDouble());
+		}
+
+		double atan2Error = 0;
+		double sqrtError = 0;
+		for (int i = 0; i < NUM_SAMPLES; i++) {
+			double exact = Math.atan2(ys[i], xs[i]);
+			atan2Error = Math.max(atan2Error, Math.abs(FastTrig.atan2(ys[i], xs[i]) - exact));
+			double root = Math.sqrt(squares[i]);
+			sqrtError = Math.max(sqrtError, Math.abs(FastTrig.sqrt(squares[i]) - root) / root);
+		}
+		// the axes and the octant boundaries
+		float[][] edges = { { 0, 1 }, { 0, -1 }, { 1, 0 }, { -1, 0 }, { 1, 1 }, { -1, 1 },
+				{ 1, -1 }, { -1, -1 }, { 1e-30F, 1 }, { 1, 1e-30F } };
+		for (float[] edge : edges) {
+			double exact = Math.atan2(edge[1], edge[0]);
+			atan2Error = Math.max(atan2Error, Math.abs(FastTrig.atan2(edge[1], edge[0]) - exact));
+		}
+
+		System.out.println("atan2 max abs error " + atan2Error + " rad (bound " + ATAN2_BOUND + ")");
+		System.out.println("sqrt max rel error  " + sqrtError + " (bound " + SQRT_BOUND + ")");
+
+		long fastAtan2 = Long.MAX_VALUE;
+		long mathAtan2 = Long.MAX_VALUE;
+		long fastSqrt = Long.MAX_VALUE;
+		long mathSqrt = Long.MAX_VALUE;
+		for (int run = 0; run < NUM_RUNS; run++) {
+			long start = System.nanoTime();
+			float sum = 0;
+			for (int i = 0; i < NUM_SAMPLES; i++) {
+				sum += FastTrig.atan2(ys[i], xs[i]);
+			}
+			fastAtan2 = Math.min(fastAtan2, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (int i = 0; i < NUM_SAMPLES; i++) {
+				sum += (float) Math.atan2(ys[i], xs[i]);
+			}
+			mathAtan2 = Math.min(mathAtan2, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (int i = 0; i < NUM_SAMPLES; i++) {
+				sum += FastTrig.sqrt(squares[i]);
+			}
+			fastSqrt = Math.min(fastSqrt, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (int i = 0; i < NUM_SAMPLES; i++) {
+				sum += (float) Math.sqrt(squares[i]);
+			}
+			mathSqrt = Math.min(mathSqrt, System.nanoTime() - start);
+			sink += sum;
+		}
+
+		System.out.println("atan2 " + nsPerCall(fastAtan2) + " ns/call, Math.atan2 "
+				+ nsPerCall(mathAtan2) + " ns/call");
+		System.out.println("sqrt  " + nsPerCall(fastSqrt) + " ns/call, Math.sqrt "
+				+ nsPerCall(mathSqrt) + " ns/call");
+
+		if (atan2Error > ATAN2_BOUND || sqrtError > SQRT_BOUND) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static String nsPerCall(long nanos) {
+		return String.valueOf(Math.round(100.0 * nanos / NUM_SAMPLES) / 100.0);
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.usb.accelerometer;
+
+import java.util.Random;
+
+/**
+ * Checks AccelerometerSensor.unpack12 against payloads packed here for
+ * every pair of 12 bit values, at offsets into the buffer, and times it
+ * against decoding the same values from the 2 bytes a value layout of the
+ * unpacked mode. Fails on the first value that does not come back.
+ *
+ * Only unpack12 is called, but AccelerometerSensor has to load, so from the
+ * project directory:
+ *
+ *   javac -cp libs/ODKSensors.jar:<android.jar> -sourcepath src -d /tmp/unpack12 \
+ *       test/org/opendatakit/sensors/drivers/usb/accelerometer/Unpack12Check.java
+ *   java -cp /tmp/unpack12:libs/ODKSensors.jar:<android.jar> \
+ *       org.opendatakit.sensors.drivers.usb.accelerometer.Unpack12Check
+ */
+public class Unpack12Check {
+
+	private static final int NUM_VALUES = 4096;
+	private static final int MIN_VALUE = -2048;
+
+	private static final int BENCH_RECORDS = 1 << 18;
+	private static final int NUM_RUNS = 10;
+
+	private static volatile int sink;
+
+	public static void main(String[] args) {
+		// every first value against every second value, one payload per first value
+		int[] values = new int[2 * NUM_VALUES];
+		int[] unpacked = new int[2 * NUM_VALUES];
+		for (int first = 0; first < NUM_VALUES; first++) {
+			for (int second = 0; second < NUM_VALUES; second++) {
+				values[2 * second] = MIN_VALUE + first;
+				values[2 * second + 1] = MIN_VALUE + second;
+			}
+			// a packet carried over from an earlier one starts part way in
+			int offset = first % 7;
+			byte[] payload = pack(values, offset);
+			int numValues = AccelerometerSensor.unpack12(payload, offset, NUM_VALUES, unpacked);
+			if (numValues != values.length) {
+				fail("unpacked " + numValues + " values, expected " + values.length);
+			}
+			for (int i = 0; i < values.length; i++) {
+				if (unpacked[i] != values[i]) {
+					fail("value " + i + " at offset " + offset + " came back as " + unpacked[i]
+							+ ", expected " + values[i]);
+				}
+			}
+		}
+		System.out.println("unpack12 round trip of all " + NUM_VALUES + " x " + NUM_VALUES
+				+ " pairs OK");
+
+		// random readings, 3 values a record, fixed seed so runs compare
+		Random random = new Random(27);
+		int[] readings = new int[3 * BENCH_RECORDS];
+		for (int i = 0; i < readings.length; i++) {
+			readings[i] = MIN_VALUE + random.nextInt(NUM_VALUES);
+		}
+		byte[] packed = pack(readings, 0);
+		byte[] wide = packWide(readings);
+		int[] dest = new int[readings.length];
+
+		long packedNanos = Long.MAX_VALUE;
+		long wideNanos = Long.MAX_VALUE;
+		for (int run = 0; run < NUM_RUNS; run++) {
+			long start = System.nanoTime();
+			AccelerometerSensor.unpack12(packed, 0, readings.length / 2, dest);
+			packedNanos = Math.min(packedNanos, System.nanoTime() - start);
+			sink += dest[run];
+
+			start = System.nanoTime();
+			unpackWide(wide, dest);
+			wideNanos = Math.min(wideNanos, System.nanoTime() - start);
+			sink += dest[run];
+		}
+
+		System.out.println("packed   " + perRecord(packed.length) + " bytes/record, "
+				+ perRecord(packedNanos) + " ns/record");
+		System.out.println("unpacked " + perRecord(wide.length) + " bytes/record, "
+				+ perRecord(wideNanos) + " ns/record");
+		System.out.println("OK");
+	}
+
+	/**
+	 * The packed layout unpack12 reads, written out plainly.
+	 */
+	private static byte[] pack(int[] values, int offset) {
+		byte[] payload = new byte[offset + values.length / 2 * 3];
+		for (int i = 0, out = offset; i < values.length; i += 2) {
+			int first = values[i] & 0xfff;
+			int second = values[i + 1] & 0xfff;
+			payload[out++] = (byte) first;
+			payload[out++] = (byte) ((first >> 8) | (second << 4));
+			payload[out++] = (byte) (second >> 4);
+		}
+		return payload;
+	}
+
+	/**
+	 * The unpacked mode layout, low byte first and 4 bits in the high byte.
+	 */
+	private static byte[] packWide(int[] values) {
+		byte[] payload = new byte[2 * values.length];
+		for (int i = 0; i < values.length; i++) {
+			payload[2 * i] = (byte) values[i];
+			payload[2 * i + 1] = (byte) ((values[i] >> 8) & 0x0f);
+		}
+		return payload;
+	}
+
+	/**
+	 * Same steps as AccelerometerSensor.constructValue.
+	 */
+	private static void unpackWide(byte[] src, int[] dest) {
+		for (int i = 0; i < dest.length; i++) {
+			int value = src[2 * i + 1] & 0x0f;
+			value = (value << 8) & 0xff00;
+			value = value | (src[2 * i] & 0xff);
+			if ((value & 0x800) > 0) {
+				value = 0xfffff000 | value;
+			}
+			dest[i] = value;
+		}
+	}
+
+	private static String perRecord(long total) {
+		return String.valueOf(Math.round(100.0 * total / BENCH_RECORDS) / 100.0);
+	}
+
+	private static void fail(String message) {
+		System.out.println("FAILED: " + message);
+		System.exit(1);
+	}
+}
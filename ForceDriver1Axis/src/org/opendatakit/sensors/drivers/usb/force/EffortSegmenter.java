@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.drivers.usb.force;
+
+import org.opendatakit.sensors.DataSeries;
+
+import android.os.Bundle;
+
+/**
+ * Splits the force stream into efforts. An effort starts when the force
+ * rises above the onset threshold and ends when it falls below the offset
+ * threshold, which is at or under the onset so noise near the onset does not
+ * split one effort into several. Each sample updates running totals in O(1)
+ * and one summary record is produced per effort. State is kept across
+ * getSensorData calls so an effort may span any number of packets.
+ *
+ * The bridge does not stamp individual force samples, so durations are
+ * counted in samples and the impulse is the sum of the readings over the
+ * effort (counts x samples). Divide by the sampling rate for seconds.
+ */
+class EffortSegmenter {
+
+	static final String MSG_TYPE_EFFORT = "effort";
+	static final String PEAK = "effort_peak";
+	static final String TIME_TO_PEAK = "effort_time_to_peak";
+	static final String DURATION = "effort_duration";
+	static final String IMPULSE = "effort_impulse";
+
+	private int onsetThreshold = 0;
+	// as configured, 0 means the onset; kept so EO and EF can be set in
+	// either order
+	private int requestedOffset = 0;
+	private int offsetThreshold = 0;
+
+	private boolean inEffort = false;
+	private long onsetTime;
+	private int samples;
+	private int peak;
+	private int peakIndex;
+	private long impulse;
+
+	boolean isEnabled() {
+		return onsetThreshold > 0;
+	}
+
+	/**
+	 * @param onset force that starts an effort, 0 disables segmenting
+	 */
+	void setOnsetThreshold(int onset) {
+		onsetThreshold = (onset < 0) ? 0 : onset;
+		updateOffset();
+	}
+
+	/**
+	 * @param offset force below which an effort ends, capped at the onset;
+	 *               0 uses the onset
+	 */
+	void setOffsetThreshold(int offset) {
+		requestedOffset = (offset < 0) ? 0 : offset;
+		updateOffset();
+	}
+
+	private void updateOffset() {
+		if (requestedOffset == 0) {
+			offsetThreshold = onsetThreshold;
+		} else {
+			offsetThreshold = Math.min(requestedOffset, onsetThreshold);
+		}
+		inEffort = false;
+	}
+
+	/**
+	 * Feed one sample through the segmenter.
+	 *
+	 * @return the summary record if this sample ended an effort, else null
+	 */
+	Bundle update(int force, long seriesTimestamp) {
+		if (!inEffort) {
+			if (force <= onsetThreshold) {
+				return null;
+			}
+			inEffort = true;
+			onsetTime = seriesTimestamp;
+			samples = 0;
+			peak = force;
+			peakIndex = 0;
+			impulse = 0;
+		}
+
+		if (force < offsetThreshold) {
+			inEffort = false;
+			return createSummary();
+		}
+
+		if (force > peak) {
+			peak = force;
+			peakIndex = samples;
+		}
+		impulse += force;
+		samples++;
+		return null;
+	}
+
+	private Bundle createSummary() {
+		Bundle summary = new Bundle();
+		summary.putString(DataSeries.MSG_TYPE, MSG_TYPE_EFFORT);
+		summary.putLong(DataSeries.SERIES_TIMESTAMP, onsetTime);
+		summary.putInt(PEAK, peak);
+		summary.putInt(TIME_TO_PEAK, peakIndex);
+		summary.putInt(DURATION, samples);
+		summary.putLong(IMPULSE, impulse);
+		return summary;
+	}
+}
@@ -31,6 +31,30 @@ import android.util.Log;
 public class ForceSensor extends AbstractDriverBaseV2 {
 
 	private static final String TAG = "ForceSensor";
+	// driver side settings, nothing is sent to the bridge
+	private static final String COMPACT_ENCODING = "CE";
+	private static final String EFFORT_ONSET = "EO";
+	private static final String EFFORT_OFFSET = "EF";
+	private static final String RAW_STREAMING = "RW";
+	private static final String CALIBRATION = "CA";
+	private static final String CALIBRATION_LABEL = "CI";
+	private static final String READ_RATE_MIN = "RL";
+	private static final String READ_RATE_MAX = "RH";
+	private static final String MSG_TYPE_CALIBRATION = "calibration";
+	
+	// 16 bit unsigned ADC counts
+	private static final int MAX_RAW = 0xFFFF;
+	private static final int SAMPLE_SIZE = 2;
+	private static final String ENCODED_SERIES = "encoded_series";
+	private static final String MSG_TYPE_SERIES = "series";
+
+	private boolean compactEncoding = false;
+	private boolean rawStreaming = true;
+	private final EffortSegmenter efforts = new EffortSegmenter();
+	private CalibrationTable calibration = null;
+	private final ReadRateController rateController = new ReadRateController();
+	private final SeriesCodec.Encoder series = new SeriesCodec.Encoder();
+	private final PendingPackets pending = new PendingPackets();
 
 	public ForceSensor() {
 		
@@ -58,7 +82,43 @@ public class ForceSensor extends AbstractDriverBaseV2 {
 			return USBParamUtil.createSamplingRateMsg(samplingRate);
 		} else if(setting.equals("RR")) {
 			int readRate = params.getInt("RR"); //reading rate
+			rateController.setActiveRate(readRate);
 			return USBParamUtil.createReadRateMsg(readRate);
+		} else if(setting.equals(READ_RATE_MIN)) {
+			rateController.setMinRate(params.getInt(READ_RATE_MIN));
+			return new byte[0];
+		} else if(setting.equals(READ_RATE_MAX)) {
+			// 0 turns the read rate suggestions off
+			rateController.setMaxRate(params.getInt(READ_RATE_MAX));
+			return new byte[0];
+		} else if(setting.equals(COMPACT_ENCODING)) {
+			// 1 reports each batch as one SeriesCodec encoded series of raw
+			// counts, the calibration curve is not applied to it
+			compactEncoding = (params.getInt(COMPACT_ENCODING) != 0);
+			series.reset();
+			return new byte[0];
+		} else if(setting.equals(EFFORT_ONSET)) {
+			// force (counts) that starts an effort, 0 turns effort summaries off
+			efforts.setOnsetThreshold(params.getInt(EFFORT_ONSET));
+			return new byte[0];
+		} else if(setting.equals(EFFORT_OFFSET)) {
+			// force (counts) below which an effort ends, defaults to the onset
+			efforts.setOffsetThreshold(params.getInt(EFFORT_OFFSET));
+			return new byte[0];
+		} else if(setting.equals(CALIBRATION)) {
+			// (raw, force) pairs, "CI" optionally names the curve; no pairs
+			// goes back to raw counts
+			float[] points = params.getFloatArray(CALIBRATION);
+			if (points == null || points.length == 0) {
+				calibration = null;
+			} else {
+				calibration = new CalibrationTable(points, params.getString(CALIBRATION_LABEL), 0, MAX_RAW);
+			}
+			return new byte[0];
+		} else if(setting.equals(RAW_STREAMING)) {
+			// 0 stops the per sample output, e.g. when only efforts are wanted
+			rawStreaming = (params.getInt(RAW_STREAMING) != 0);
+			return new byte[0];
 		}
 		throw new ParameterMissingException("Unknown Setting");
 	}
@@ -68,7 +128,24 @@ public class ForceSensor extends AbstractDriverBaseV2 {
 		List<Bundle> allData = new ArrayList<Bundle>();
 //		Log.d(TAG," no. of SDPs: " + rawData.size());
 		
-		for(SensorDataPacket pkt: rawData) {
+		// packets left over from earlier calls are queued in the driver, so
+		// remainingData is not used
+		pending.addAll(rawData);
+		
+		if (calibration != null && rawStreaming && !compactEncoding && !pending.isEmpty()) {
+			// tells consumers which curve produced the calibrated values below;
+			// compact series and effort summaries stay in raw counts
+			Bundle calInfo = new Bundle();
+			calInfo.putString(DataSeries.MSG_TYPE, MSG_TYPE_CALIBRATION);
+			calInfo.putString(MSG_TYPE_CALIBRATION, calibration.getLabel());
+			allData.add(calInfo);
+		}
+		
+		// 0 or less means no limit
+		long budget = (maxNumReadings > 0) ? maxNumReadings : Long.MAX_VALUE;
+		int numParsed = 0;
+		SensorDataPacket pkt;
+		while(budget > 0 && (pkt = pending.next()) != null) {
 			Log.d(TAG, pkt.getPayload().length + " bytes rvcd. numsamples: "
 					+ pkt.getSizeOfSeries() + " series timestamp: " + pkt.getTime());
 //			Bundle tsBundle = new Bundle();
@@ -77,20 +154,56 @@ public class ForceSensor extends AbstractDriverBaseV2 {
 			long seriesTimestamp = pkt.getTime();
 			byte[] sdpPayload = pkt.getPayload();
 			
-			for(int indexOffset=0; indexOffset < sdpPayload.length; indexOffset += 2) {
-				allData.add(extractReading(sdpPayload, indexOffset,seriesTimestamp));
+			int numSamples = sdpPayload.length / SAMPLE_SIZE;
+			int take = (int) Math.min(numSamples, budget);
+			budget -= take;
+			numParsed += take;
+			if (take < numSamples) {
+				pending.putBackTail(pkt, take * SAMPLE_SIZE, take);
+			}
+			
+			for(int indexOffset=0; indexOffset < take * SAMPLE_SIZE; indexOffset += SAMPLE_SIZE) {
+				int force = readForce(sdpPayload, indexOffset);
+				if (rawStreaming && compactEncoding) {
+					series.add(seriesTimestamp, force);
+				} else if (rawStreaming) {
+					allData.add(extractReading(force, seriesTimestamp));
+				}
+				if (efforts.isEnabled()) {
+					Bundle effort = efforts.update(force, seriesTimestamp);
+					if (effort != null) {
+						allData.add(effort);
+					}
+				}
 			}
 		}
+		
+		if (series.size() > 0) {
+			Bundle encoded = new Bundle();
+			encoded.putString(DataSeries.MSG_TYPE, MSG_TYPE_SERIES);
+			encoded.putByteArray(ENCODED_SERIES, series.toByteArray());
+			allData.add(encoded);
+			series.reset();
+		}
+		
+		// samples, not bundles: compact series, magnitudes and effort
+		// summaries report many samples in one bundle
+		int requestedRate = rateController.update(numParsed, !pending.isEmpty());
+		if (requestedRate > 0) {
+			// the driver cannot write to the bridge on its own, so the caller
+			// applies the request by configuring RR with the suggested value
+			allData.add(ReadRateController.createRequest(requestedRate));
+		}
 		return new SensorDataParseResponse(allData, null);
 	}
 
-	private Bundle extractReading(byte [] data, int beginIndexOffset, long seriesTimestamp) {
+	private Bundle extractReading(int value, long seriesTimestamp) {
 		Bundle parsedPkt = new Bundle();		
-		int value = data[beginIndexOffset+1] & 0xff;
-//		Log.d(TAG, "got high byte: " + value + " low byte: " + (data[beginIndexOffset+0] & 0xff));
-		value = (value << 8) & 0xff00;
-		value = value | (data[beginIndexOffset+0] & 0xff);
-		parsedPkt.putInt("force", value);
+		if (calibration != null) {
+			parsedPkt.putFloat("force-calibrated", calibration.apply(value));
+		} else {
+			parsedPkt.putInt("force", value);
+		}
 		parsedPkt.putLong("series-timestamp", seriesTimestamp);
 		
 //		long sampleTimestamp = ((data[beginIndexOffset+5] & 0xff) << 24)
@@ -105,6 +218,13 @@ public class ForceSensor extends AbstractDriverBaseV2 {
 		return parsedPkt;
 	}
 	
+	private static int readForce(byte [] data, int beginIndexOffset) {
+		int value = data[beginIndexOffset+1] & 0xff;
+//		Log.d(TAG, "got high byte: " + value + " low byte: " + (data[beginIndexOffset+0] & 0xff));
+		value = (value << 8) & 0xff00;
+		return value | (data[beginIndexOffset+0] & 0xff);
+	}
+	
     public static int byteToIntUnsigned(byte toConvert){
     	int toReturn = (int) (toConvert & 0x7F);
     	if((int) toConvert < 0){
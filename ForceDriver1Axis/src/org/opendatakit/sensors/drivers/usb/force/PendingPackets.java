@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.drivers.usb.force;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opendatakit.sensors.SensorDataPacket;
+
+/**
+ * Packets getSensorData did not get to because of maxNumReadings. They stay
+ * queued in the driver until a later call rather than being laid out in
+ * remainingData and parsed back each time, so a call only touches the
+ * packets it actually parses and its cost does not grow with the backlog.
+ * A packet split at the limit keeps its series timestamp and the count of
+ * the samples still in it.
+ */
+final class PendingPackets {
+
+	private final ArrayDeque<SensorDataPacket> packets = new ArrayDeque<SensorDataPacket>();
+
+	/**
+	 * Queues the packets of this call behind the ones left over from
+	 * earlier calls.
+	 */
+	void addAll(List<SensorDataPacket> rawData) {
+		packets.addAll(rawData);
+	}
+
+	boolean isEmpty() {
+		return packets.isEmpty();
+	}
+
+	/**
+	 * @return the oldest queued packet, or null if there are none
+	 */
+	SensorDataPacket next() {
+		return packets.poll();
+	}
+
+	/**
+	 * Puts a packet back at the head of the queue for the next call.
+	 */
+	void putBack(SensorDataPacket pkt) {
+		packets.addFirst(pkt);
+	}
+
+	/**
+	 * Puts the part of a packet from byteOffset on back at the head of the
+	 * queue, with the sample count reduced by the samples before it.
+	 */
+	void putBackTail(SensorDataPacket pkt, int byteOffset, int samplesSkipped) {
+		byte[] payload = pkt.getPayload();
+		packets.addFirst(new SensorDataPacket(Arrays.copyOfRange(payload, byteOffset, payload.length),
+				pkt.getTime(), Math.max(0, pkt.getSizeOfSeries() - samplesSkipped)));
+	}
+}
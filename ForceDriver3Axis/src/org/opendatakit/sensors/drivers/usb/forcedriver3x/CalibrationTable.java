@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.drivers.usb.forcedriver3x;
+
+import org.opendatakit.sensors.ParameterMissingException;
+
+/**
+ * Piecewise linear load cell calibration. The curve is given as pairs of
+ * (raw count, calibrated force) with ascending counts and is expanded once
+ * into a lookup entry for every count the ADC can produce, so converting a
+ * reading is a single array access. Counts outside the first and last points
+ * follow the end segments.
+ */
+class CalibrationTable {
+
+	private final String label;
+	private final int minRaw;
+	private final float[] lookup;
+
+	/**
+	 * @param points interleaved raw count and force pairs, at least two
+	 *               pairs with strictly ascending counts
+	 * @param label  name reported with each batch, may be null
+	 */
+	CalibrationTable(float[] points, String label, int minRaw, int maxRaw)
+			throws ParameterMissingException {
+		if (points == null || points.length < 4 || (points.length % 2) != 0) {
+			throw new ParameterMissingException("Calibration needs at least two (raw, force) pairs");
+		}
+		for (int i = 2; i < points.length; i += 2) {
+			if (points[i] <= points[i - 2]) {
+				throw new ParameterMissingException("Calibration raw counts must be ascending");
+			}
+		}
+
+		this.label = (label != null) ? label : (points.length / 2) + " point curve";
+		this.minRaw = minRaw;
+		lookup = new float[maxRaw - minRaw + 1];
+
+		// walk the counts and the segments together
+		int seg = 0;
+		int lastSeg = points.length - 4;
+		for (int raw = minRaw; raw <= maxRaw; raw++) {
+			while (seg < lastSeg && raw > points[seg + 2]) {
+				seg += 2;
+			}
+			float x0 = points[seg];
+			float y0 = points[seg + 1];
+			float slope = (points[seg + 3] - y0) / (points[seg + 2] - x0);
+			lookup[raw - minRaw] = y0 + slope * (raw - x0);
+		}
+	}
+
+	String getLabel() {
+		return label;
+	}
+
+	float apply(int raw) {
+		return lookup[raw - minRaw];
+	}
+}
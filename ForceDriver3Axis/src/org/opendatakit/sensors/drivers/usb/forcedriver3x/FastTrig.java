@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.drivers.usb.forcedriver3x;
+
+/**
+ * Bounded-error replacements for Math.atan2 and 1/Math.sqrt used when
+ * computing the resultant force vector inside the driver.
+ *
+ * atan2 uses a 9th order odd polynomial on [-1, 1] and folds the other
+ * octants onto it; the absolute error is below 2e-5 rad (about 0.001
+ * degrees) including float rounding. invSqrt is the usual bit-level
+ * estimate followed by two Newton steps; the relative error is below 5e-6.
+ * Both are far inside the resolution of the 12 bit force ADC.
+ */
+final class FastTrig {
+
+	static final float PI = (float) Math.PI;
+	static final float HALF_PI = (float) (Math.PI / 2.0);
+	static final float RAD_TO_DEG = (float) (180.0 / Math.PI);
+
+	// Abramowitz and Stegun 4.4.49
+	private static final float A1 = 0.9998660F;
+	private static final float A3 = -0.3302995F;
+	private static final float A5 = 0.1801410F;
+	private static final float A7 = -0.0851330F;
+	private static final float A9 = 0.0208351F;
+
+	private FastTrig() {
+	}
+
+	/**
+	 * Polynomial atan for |z| <= 1.
+	 */
+	private static float atanUnit(float z) {
+		float z2 = z * z;
+		return z * (A1 + z2 * (A3 + z2 * (A5 + z2 * (A7 + z2 * A9))));
+	}
+
+	static float atan2(float y, float x) {
+		if (x == 0.0F && y == 0.0F) {
+			return 0.0F;
+		}
+
+		float ax = Math.abs(x);
+		float ay = Math.abs(y);
+		float angle;
+		if (ay <= ax) {
+			angle = atanUnit(ay / ax);
+		} else {
+			angle = HALF_PI - atanUnit(ax / ay);
+		}
+
+		if (x < 0.0F) {
+			angle = PI - angle;
+		}
+		return (y < 0.0F) ? -angle : angle;
+	}
+
+	static float invSqrt(float value) {
+		float half = 0.5F * value;
+		int bits = Float.floatToRawIntBits(value);
+		bits = 0x5f3759df - (bits >> 1);
+		float estimate = Float.intBitsToFloat(bits);
+		estimate = estimate * (1.5F - half * estimate * estimate);
+		estimate = estimate * (1.5F - half * estimate * estimate);
+		return estimate;
+	}
+
+	static float sqrt(float value) {
+		if (value <= 0.0F) {
+			return 0.0F;
+		}
+		return value * invSqrt(value);
+	}
+}
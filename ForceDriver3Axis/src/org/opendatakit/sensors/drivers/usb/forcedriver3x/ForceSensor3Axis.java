@@ -31,6 +31,38 @@ import android.util.Log;
 public class ForceSensor3Axis extends AbstractDriverBaseV2 {
 
 	private static final String TAG = "ForceSensor3Axis";
+	// driver side settings, nothing is sent to the bridge
+	private static final String CALIBRATION_X = "CX";
+	private static final String CALIBRATION_Y = "CY";
+	private static final String CALIBRATION_Z = "CZ";
+	private static final String CALIBRATION_LABEL = "CI";
+	private static final String MSG_TYPE_CALIBRATION = "calibration";
+	private static final String VECTOR_MODE = "VM";
+	private static final String READ_RATE_MIN = "RL";
+	private static final String READ_RATE_MAX = "RH";
+	
+	// values of VECTOR_MODE
+	private static final int VECTOR_OFF = 0;
+	private static final int VECTOR_FULL = 1;
+	private static final int VECTOR_MAGNITUDE_ONLY = 2;
+	
+	private static final int SAMPLE_SIZE = 6;
+	
+	// 12 bit signed ADC counts
+	private static final int MIN_RAW = -2048;
+	private static final int MAX_RAW = 2047;
+	
+	private CalibrationTable calibrationX = null;
+	private CalibrationTable calibrationY = null;
+	private CalibrationTable calibrationZ = null;
+	
+	private int vectorMode = VECTOR_OFF;
+	private final ReadRateController rateController = new ReadRateController();
+	private final PendingPackets pending = new PendingPackets();
+	// per packet scratch space for the vector modes, grown as needed
+	private float[] axisX = new float[0];
+	private float[] axisY = new float[0];
+	private float[] axisZ = new float[0];
 
 	public ForceSensor3Axis() {
 		
@@ -58,28 +90,185 @@ public class ForceSensor3Axis extends AbstractDriverBaseV2 {
 			return USBParamUtil.createSamplingRateMsg(samplingRate);
 		} else if(setting.equals("RR")) {
 			int readRate = params.getInt("RR"); //reading rate
+			rateController.setActiveRate(readRate);
 			return USBParamUtil.createReadRateMsg(readRate);
+		} else if(setting.equals(READ_RATE_MIN)) {
+			rateController.setMinRate(params.getInt(READ_RATE_MIN));
+			return new byte[0];
+		} else if(setting.equals(READ_RATE_MAX)) {
+			// 0 turns the read rate suggestions off
+			rateController.setMaxRate(params.getInt(READ_RATE_MAX));
+			return new byte[0];
+		} else if(setting.equals(CALIBRATION_X)) {
+			// (raw, force) pairs for the axis reported as x-value, "CI"
+			// optionally names the curve; no pairs goes back to raw counts
+			calibrationX = createCalibration(CALIBRATION_X, params);
+			checkVectorCalibration();
+			return new byte[0];
+		} else if(setting.equals(CALIBRATION_Y)) {
+			calibrationY = createCalibration(CALIBRATION_Y, params);
+			checkVectorCalibration();
+			return new byte[0];
+		} else if(setting.equals(CALIBRATION_Z)) {
+			calibrationZ = createCalibration(CALIBRATION_Z, params);
+			checkVectorCalibration();
+			return new byte[0];
+		} else if(setting.equals(VECTOR_MODE)) {
+			// 0 per axis values, 1 adds magnitude, azimuth and elevation,
+			// 2 reports only an array of magnitudes per packet
+			vectorMode = params.getInt(VECTOR_MODE);
+			return new byte[0];
 		}
 		throw new ParameterMissingException("Unknown Setting");
 	}
 	
+	private CalibrationTable createCalibration(String setting, Bundle params) 
+	throws ParameterMissingException {
+		float[] points = params.getFloatArray(setting);
+		if (points == null || points.length == 0) {
+			return null;
+		}
+		return new CalibrationTable(points, params.getString(CALIBRATION_LABEL), MIN_RAW, MAX_RAW);
+	}
+	
+	/**
+	 * Vectors mix all three axes, so they are only calibrated once every
+	 * axis has a curve. The axes are configured one at a time, so a partial
+	 * set is allowed and the vectors stay in raw counts until it is complete.
+	 */
+	private boolean isVectorCalibrated() {
+		return calibrationX != null && calibrationY != null && calibrationZ != null;
+	}
+	
+	private void checkVectorCalibration() {
+		boolean anyCalibrated = calibrationX != null || calibrationY != null || calibrationZ != null;
+		if (anyCalibrated && !isVectorCalibrated()) {
+			Log.w(TAG, "not every axis is calibrated, vectors use raw counts for all three");
+		}
+	}
+	
 	@Override
 	public SensorDataParseResponse getSensorData(long maxNumReadings, List<SensorDataPacket> rawData, byte [] remainingData) {
 		List<Bundle> allData = new ArrayList<Bundle>();
 		
-		for(SensorDataPacket pkt: rawData) {
+		// packets left over from earlier calls are queued in the driver, so
+		// remainingData is not used
+		pending.addAll(rawData);
+		
+		if (!pending.isEmpty()
+				&& (calibrationX != null || calibrationY != null || calibrationZ != null)) {
+			// tells consumers which curves produced the calibrated values below
+			Bundle calInfo = new Bundle();
+			calInfo.putString(DataSeries.MSG_TYPE, MSG_TYPE_CALIBRATION);
+			if (calibrationX != null) {
+				calInfo.putString("x-calibration", calibrationX.getLabel());
+			}
+			if (calibrationY != null) {
+				calInfo.putString("y-calibration", calibrationY.getLabel());
+			}
+			if (calibrationZ != null) {
+				calInfo.putString("z-calibration", calibrationZ.getLabel());
+			}
+			calInfo.putBoolean("vector-calibrated", isVectorCalibrated());
+			allData.add(calInfo);
+		}
+		
+		// 0 or less means no limit
+		long budget = (maxNumReadings > 0) ? maxNumReadings : Long.MAX_VALUE;
+		int numParsed = 0;
+		SensorDataPacket pkt;
+		while(budget > 0 && (pkt = pending.next()) != null) {
 			Log.d(TAG, pkt.getPayload().length + " bytes rvcd. numsamples: "
 					+ pkt.getSizeOfSeries());
 			
 			long seriesTimestamp = pkt.getTime();
 			byte[] sdpPayload = pkt.getPayload();
 			
-			for(int indexOffset=0; indexOffset < sdpPayload.length; indexOffset += 6) {
+			int numSamples = sdpPayload.length / SAMPLE_SIZE;
+			int take = (int) Math.min(numSamples, budget);
+			budget -= take;
+			numParsed += take;
+			if (take < numSamples) {
+				pending.putBackTail(pkt, take * SAMPLE_SIZE, take);
+			}
+			
+			if (vectorMode == VECTOR_FULL || vectorMode == VECTOR_MAGNITUDE_ONLY) {
+				extractVectors(sdpPayload, take, seriesTimestamp, allData);
+				continue;
+			}
+			
+			for(int indexOffset=0; indexOffset < take * SAMPLE_SIZE; indexOffset += SAMPLE_SIZE) {
 				allData.add(extractReading(sdpPayload, indexOffset,seriesTimestamp));
 			}
 		}
+		
+		// samples, not bundles: compact series, magnitudes and effort
+		// summaries report many samples in one bundle
+		int requestedRate = rateController.update(numParsed, !pending.isEmpty());
+		if (requestedRate > 0) {
+			// the driver cannot write to the bridge on its own, so the caller
+			// applies the request by configuring RR with the suggested value
+			allData.add(ReadRateController.createRequest(requestedRate));
+		}
 		return new SensorDataParseResponse(allData, null);
 	}
+	
+	/**
+	 * Decodes the first numSamples of a packet into the axis arrays first and
+	 * derives the vector values for every sample in one pass over them.
+	 */
+	private void extractVectors(byte [] data, int numSamples, long seriesTimestamp, 
+			List<Bundle> allData) {
+		if (axisX.length < numSamples) {
+			axisX = new float[numSamples];
+			axisY = new float[numSamples];
+			axisZ = new float[numSamples];
+		}
+		
+		// all three axes in the same units, see isVectorCalibrated
+		boolean calibrated = isVectorCalibrated();
+		CalibrationTable tableX = calibrated ? calibrationX : null;
+		CalibrationTable tableY = calibrated ? calibrationY : null;
+		CalibrationTable tableZ = calibrated ? calibrationZ : null;
+		
+		// same byte order as extractReading: z, y, x
+		for (int i = 0, offset = 0; i < numSamples; i++, offset += SAMPLE_SIZE) {
+			axisZ[i] = applyCalibration(constructValue(data[offset+1], data[offset]), tableZ);
+			axisY[i] = applyCalibration(constructValue(data[offset+3], data[offset+2]), tableY);
+			axisX[i] = applyCalibration(constructValue(data[offset+5], data[offset+4]), tableX);
+		}
+		
+		float[] magnitude = new float[numSamples];
+		for (int i = 0; i < numSamples; i++) {
+			float x = axisX[i];
+			float y = axisY[i];
+			float z = axisZ[i];
+			magnitude[i] = FastTrig.sqrt(x * x + y * y + z * z);
+		}
+		
+		if (vectorMode == VECTOR_MAGNITUDE_ONLY) {
+			Bundle magnitudes = new Bundle();
+			magnitudes.putLong("series-timestamp", seriesTimestamp);
+			magnitudes.putFloatArray("magnitudes", magnitude);
+			allData.add(magnitudes);
+			return;
+		}
+		
+		for (int i = 0, offset = 0; i < numSamples; i++, offset += SAMPLE_SIZE) {
+			float x = axisX[i];
+			float y = axisY[i];
+			Bundle parsedPkt = extractReading(data, offset, seriesTimestamp);
+			parsedPkt.putFloat("magnitude", magnitude[i]);
+			parsedPkt.putFloat("azimuth", FastTrig.atan2(y, x) * FastTrig.RAD_TO_DEG);
+			parsedPkt.putFloat("elevation", FastTrig.atan2(axisZ[i], FastTrig.sqrt(x * x + y * y)) 
+					* FastTrig.RAD_TO_DEG);
+			allData.add(parsedPkt);
+		}
+	}
+	
+	private float applyCalibration(int value, CalibrationTable calibration) {
+		return (calibration != null) ? calibration.apply(value) : value;
+	}
 
 	private Bundle extractReading(byte [] data, int beginIndexOffset, long seriesTimestamp) {
 		Bundle parsedPkt = new Bundle();	
@@ -98,23 +287,32 @@ public class ForceSensor3Axis extends AbstractDriverBaseV2 {
 //		Log.d(TAG, "X: got high byte: " + (data[beginIndexOffset+1] & 0xff) + " low byte: " + (data[beginIndexOffset+0] & 0xff));
 		value = constructValue(data[beginIndexOffset+1], data[beginIndexOffset]);
 //		Log.d(TAG, "X Value: " + value);
-		parsedPkt.putInt("z-value", value);
+		putAxis(parsedPkt, "z-value", "z-calibrated", value, calibrationZ);
 
 		// get y value
 //		Log.d(TAG, "Y: got high byte: " + (data[beginIndexOffset+3] & 0xff) + " low byte: " + (data[beginIndexOffset+2] & 0xff));
 		value = constructValue(data[beginIndexOffset+3], data[beginIndexOffset+2]);
 //		Log.d(TAG, "Y Value: " + value);
-		parsedPkt.putInt("y-value", value);
+		putAxis(parsedPkt, "y-value", "y-calibrated", value, calibrationY);
 
 		// get z value
 //		Log.d(TAG, "Z: got high byte: " + (data[beginIndexOffset+5] & 0xff) + " low byte: " + (data[beginIndexOffset+4] & 0xff));
 		value = constructValue(data[beginIndexOffset+5], data[beginIndexOffset+4]);
 //		Log.d(TAG, "Z Value: " + value);
-		parsedPkt.putInt("x-value", value);
+		putAxis(parsedPkt, "x-value", "x-calibrated", value, calibrationX);
 
 		return parsedPkt;
 	}
 	
+	private void putAxis(Bundle parsedPkt, String rawKey, String calibratedKey, int value, 
+			CalibrationTable calibration) {
+		if (calibration != null) {
+			parsedPkt.putFloat(calibratedKey, calibration.apply(value));
+		} else {
+			parsedPkt.putInt(rawKey, value);
+		}
+	}
+	
 	private int constructValue(int high, byte low) {
 		int value = high & 0x0f;
 		value = (value << 8) & 0xff00;
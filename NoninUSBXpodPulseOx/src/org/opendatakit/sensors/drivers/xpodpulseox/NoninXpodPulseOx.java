@@ -67,6 +67,11 @@ public class NoninXpodPulseOx extends AbstractDriverBaseV2 {
 
 		int indexUnusedByte2 = -1;
 		for (NoninPacket pkt : packets) {
+			// stop at maxNumReadings (0 or less means no limit), the bytes of
+			// the packets left over stay in remainingData
+			if (maxNumReadings > 0 && allData.size() >= maxNumReadings) {
+				break;
+			}
 			if (indexUnusedByte2 < pkt.getLastUnusedByte()) {
 				indexUnusedByte2 = pkt.getLastUnusedByte();
 				Log.e(TAG,
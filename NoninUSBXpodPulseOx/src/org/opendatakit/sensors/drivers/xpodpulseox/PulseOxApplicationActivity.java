@@ -15,6 +15,7 @@
  */
 package org.opendatakit.sensors.drivers.xpodpulseox;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.opendatakit.sensors.service.BaseActivity;
@@ -23,7 +24,6 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.media.MediaPlayer;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.util.Log;
@@ -54,8 +54,13 @@ public class PulseOxApplicationActivity extends BaseActivity {
 	private static final int PULSE_COLOR = Color.rgb(64,128,64);
 	
 	private static final int MAX_DATAPOINTS = 300;
+	// the driver stops parsing here and keeps the rest for the next poll
+	private static final int MAX_READINGS_PER_POLL = 25;
+	// the probe sends a packet every 1/75 s while it is on a finger
+	private static final long MIN_POLL_INTERVAL_MS = 50;
+	private static final long MAX_POLL_INTERVAL_MS = 1000;
 
-	private String pulseOxId;
+	private volatile String pulseOxId;
 
 	private Button probeConnectionButton;
 	private Button recordPulseOxButton;
@@ -67,11 +72,13 @@ public class PulseOxApplicationActivity extends BaseActivity {
 	private Integer mAnswerOx;
 	private Integer mAnswerPulse;
 
-	private DataProcessor pulseOxProcessor;
+	private SensorDataSubscription pulseOxSubscription;
+	private UiHandoff<PulseOxDisplay> pulseOxHandoff;
 
-	private boolean isConnected;
+	private volatile boolean isConnected;
 	
-	// Used to only play the beep once when an getting an accurate reading
+	// Used to only play the beep once when an getting an accurate reading,
+	// only touched on the polling thread
 	private boolean playBeep = true;
 
 	//plots for plotting the data from the oxygen sensor
@@ -79,6 +86,12 @@ public class PulseOxApplicationActivity extends BaseActivity {
 	private XYPlot dataPlot;
 	private int dataPointCounter = 0;
 	
+	// what the views currently show, only touched on the UI thread
+	private String shownPulse;
+	private String shownOx;
+	private String shownStatus;
+	private Boolean shownUsable;
+	
 	/** Called when the activity is first created. */
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -125,21 +138,23 @@ public class PulseOxApplicationActivity extends BaseActivity {
 		mAnswerOx = 0;
 		mAnswerPulse = 0;
 
+		pulseOxHandoff = new UiHandoff<PulseOxDisplay>(pulseOxRenderer);
+		pulseOxSubscription = new SensorDataSubscription(pulseOxSource, pulseOxListener,
+				MIN_POLL_INTERVAL_MS, MAX_POLL_INTERVAL_MS, MAX_READINGS_PER_POLL);
 
 		Log.d(TAG, "on create");
 	}
 	
 	protected void onResume() {
 		super.onResume();
-		pulseOxProcessor = new DataProcessor(this);
-		pulseOxProcessor.execute();
+		pulseOxSubscription.start();
 	}
 	
     protected void onPause() {
         super.onPause();
 
-		// stop the processor of data
-		pulseOxProcessor.cancel(true);
+		// stop the delivery of data
+		pulseOxSubscription.stop();
     }
     
 	@Override
@@ -177,13 +192,16 @@ public class PulseOxApplicationActivity extends BaseActivity {
 				Log.d(TAG, "connecting to sensor: " + pulseOxId);
 				sensorConnect(pulseOxId, null);
 				pulseTxt.setText("IN CONNECTING");
+				shownPulse = null;
 				probeConnectionButton.setText("PROBLEM DETECTING PROBE\n Retry PulseOx Probe Connect");
 			}
 			if (isConnected(pulseOxId)) {
 				Log.d(TAG, "starting pulse ox sensor: " + pulseOxId);
 				isConnected = true;
 				startSensor(pulseOxId);
+				pulseOxSubscription.wake();
 				pulseTxt.setText("IN STARTING");
+				shownPulse = null;
 				probeConnectionButton.setText("Restart PulseOx Probe Connection");
 			} else {
 				Log.d(TAG, "Trouble in connecting to pulseOx sensor");
@@ -223,106 +241,199 @@ public class PulseOxApplicationActivity extends BaseActivity {
 		}
 	}
 
-	private void processData() {
-
-		// ensure sensor has been connected
-		if (!isConnected) {
-			return;
+	private final SensorDataSubscription.Source pulseOxSource = new SensorDataSubscription.Source() {
+		public List<Bundle> fetch(long maxNumReadings) throws RemoteException {
+			// ensure sensor has been connected
+			if (!isConnected) {
+				return null;
+			}
+			return getSensorData(pulseOxId, maxNumReadings);
 		}
-		runOnUiThread(new Runnable() {
-			public void run() {
-				try {
-					List<Bundle> data = getSensorData(pulseOxId, 1);
-					if (data != null) {
-						
-						for (Bundle b : data) {
-							if (b.containsKey(NoninPacket.CONNECTED)) {
-								boolean connected = b.getBoolean(NoninPacket.CONNECTED);
-								
-								if (!connected) {
-									pulseTxt.setText(DEVICE_NOT_CONNECTED);
-									oxTxt.setText(DEVICE_NOT_CONNECTED);
-									statusTxt.setText(DEVICE_NOT_CONNECTED);
-									continue;
-								}
-							}
-							if (b.containsKey(NoninPacket.UNUSABLE)) {
-								boolean unusable = b.getBoolean(NoninPacket.UNUSABLE);
-								if (unusable) {
-									pulseTxt.setTextColor(Color.MAGENTA);
-									oxTxt.setTextColor(Color.MAGENTA);
-									statusTxt.setTextColor(Color.RED);
-									statusTxt.setText(DATA_INACCURATE);
-									recordPulseOxButton.setEnabled(false);
-									recordPulseOxButton.setTextColor(Color.GRAY);
-									playBeep=true;
-								} else {
-									pulseTxt.setTextColor(PULSE_COLOR);
-									oxTxt.setTextColor(Color.BLUE);
-									statusTxt.setTextColor(Color.BLACK);
-									statusTxt.setText(DATA_GOOD);
-									recordPulseOxButton.setEnabled(true);
-									recordPulseOxButton.setTextColor(Color.BLUE);
-									if (playBeep) {
-										MediaPlayer mediaPlayer = MediaPlayer.create(
-												PulseOxApplicationActivity.this, R.raw.beep);
-										mediaPlayer.start();
-										playBeep = false;
-									}
-								}
-	    						
-							}
-								
-							if (b.containsKey(NoninPacket.PULSE)) {
-								int pulse = b.getInt(NoninPacket.PULSE);
-								if(pulse == 511) {
-									pulseTxt.setText("Error");
-								} else {
-									pulseTxt.setText(Integer.toString(pulse));
-								}
-								mAnswerPulse = pulse;
-								Log.d(TAG, "Got new pulse: " + pulse);
-							}
-							if (b.containsKey(NoninPacket.OX)) {
-								int ox = b.getInt(NoninPacket.OX);
-								if(ox == 127) {
-									mAnswerOx = -1;
-									oxTxt.setText("Error");
-								} else {
-									mAnswerOx = 99;
-									oxTxt.setText("99");
-//									oxTxt.setText(Integer.toString(ox));
-//									mAnswerOx = ox;
-								}
-								
-								//vibrator.vibrate(75);
-								Log.d(TAG, "Got new oxygen: " + ox);
-							}
-							
-							if (b.containsKey(NoninPacket.PLETHYSMOGRAPHIC)) {
-								int[] pleths = b
-										.getIntArray(NoninPacket.PLETHYSMOGRAPHIC);
-
-								for (int i = 0; i < NoninPacket.PACKET_SIZE; i++) {
-									plenthSeries.addLast(dataPointCounter,
-											pleths[i]);
-									dataPointCounter++;
-
-									if (dataPointCounter > MAX_DATAPOINTS) {
-										plenthSeries.removeFirst();
-									}
-								}
-								dataPlot.redraw();
-							}
+	};
+
+	/*
+	 * Runs on the polling thread. The whole batch is folded into the state the screen ends up in, so 
+	 * the UI thread only sets each view once per frame however many packets arrived, and only if it changed.
+	 */
+	private final SensorDataSubscription.Listener pulseOxListener = new SensorDataSubscription.Listener() {
+		public void onSensorData(List<Bundle> data) {
+			PulseOxDisplay display = new PulseOxDisplay();
+			
+			for (Bundle b : data) {
+				if (b.containsKey(NoninPacket.CONNECTED)) {
+					boolean connected = b.getBoolean(NoninPacket.CONNECTED);
+					
+					if (!connected) {
+						display.pulseText = DEVICE_NOT_CONNECTED;
+						display.oxText = DEVICE_NOT_CONNECTED;
+						display.statusText = DEVICE_NOT_CONNECTED;
+						continue;
+					}
+				}
+				if (b.containsKey(NoninPacket.UNUSABLE)) {
+					boolean unusable = b.getBoolean(NoninPacket.UNUSABLE);
+					display.usable = !unusable;
+					if (unusable) {
+						display.statusText = DATA_INACCURATE;
+						playBeep=true;
+					} else {
+						display.statusText = DATA_GOOD;
+						if (playBeep) {
+							display.beep = true;
+							playBeep = false;
 						}
-
 					}
-				} catch (RemoteException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+    						
+				}
+					
+				if (b.containsKey(NoninPacket.PULSE)) {
+					int pulse = b.getInt(NoninPacket.PULSE);
+					if(pulse == 511) {
+						display.pulseText = "Error";
+					} else {
+						display.pulseText = Integer.toString(pulse);
+					}
+					display.answerPulse = pulse;
+					Log.d(TAG, "Got new pulse: " + pulse);
+				}
+				if (b.containsKey(NoninPacket.OX)) {
+					int ox = b.getInt(NoninPacket.OX);
+					if(ox == 127) {
+						display.answerOx = -1;
+						display.oxText = "Error";
+					} else {
+						display.answerOx = 99;
+						display.oxText = "99";
+//									display.oxText = Integer.toString(ox);
+//									display.answerOx = ox;
+					}
+					
+					//vibrator.vibrate(75);
+					Log.d(TAG, "Got new oxygen: " + ox);
+				}
+				
+				if (b.containsKey(NoninPacket.PLETHYSMOGRAPHIC)) {
+					display.addPleths(b.getIntArray(NoninPacket.PLETHYSMOGRAPHIC));
+				}
+			}
+			
+			pulseOxHandoff.publish(display);
+		}
+	};
+	
+	private final UiHandoff.Renderer<PulseOxDisplay> pulseOxRenderer = new UiHandoff.Renderer<PulseOxDisplay>() {
+		public void render(PulseOxDisplay display) {
+			if (display.usable != null && !display.usable.equals(shownUsable)) {
+				shownUsable = display.usable;
+				if (!display.usable) {
+					pulseTxt.setTextColor(Color.MAGENTA);
+					oxTxt.setTextColor(Color.MAGENTA);
+					statusTxt.setTextColor(Color.RED);
+					recordPulseOxButton.setEnabled(false);
+					recordPulseOxButton.setTextColor(Color.GRAY);
+				} else {
+					pulseTxt.setTextColor(PULSE_COLOR);
+					oxTxt.setTextColor(Color.BLUE);
+					statusTxt.setTextColor(Color.BLACK);
+					recordPulseOxButton.setEnabled(true);
+					recordPulseOxButton.setTextColor(Color.BLUE);
 				}
 			}
-		});
+			if (display.beep) {
+				MediaPlayer mediaPlayer = MediaPlayer.create(
+						PulseOxApplicationActivity.this, R.raw.beep);
+				mediaPlayer.start();
+			}
+			
+			// setText requests a layout pass even for the same text
+			if (display.pulseText != null && !display.pulseText.equals(shownPulse)) {
+				pulseTxt.setText(display.pulseText);
+				shownPulse = display.pulseText;
+			}
+			if (display.oxText != null && !display.oxText.equals(shownOx)) {
+				oxTxt.setText(display.oxText);
+				shownOx = display.oxText;
+			}
+			if (display.statusText != null && !display.statusText.equals(shownStatus)) {
+				statusTxt.setText(display.statusText);
+				shownStatus = display.statusText;
+			}
+			if (display.answerPulse != null) {
+				mAnswerPulse = display.answerPulse;
+			}
+			if (display.answerOx != null) {
+				mAnswerOx = display.answerOx;
+			}
+			
+			if (!display.pleths.isEmpty() || display.droppedPleths > 0) {
+				// samples that fell off the front of the backlog would have 
+				// scrolled off the plot anyway
+				dataPointCounter += display.droppedPleths;
+				for (int[] pleths : display.pleths) {
+					for (int i = 0; i < NoninPacket.PACKET_SIZE; i++) {
+						plenthSeries.addLast(dataPointCounter,
+								pleths[i]);
+						dataPointCounter++;
+
+						if (plenthSeries.size() > MAX_DATAPOINTS) {
+							plenthSeries.removeFirst();
+						}
+					}
+				}
+				dataPlot.redraw();
+			}
+		}
+	};
+	
+	/*
+	 * What a batch of readings does to the screen. Fields left null were not touched by the batch.
+	 */
+	private static class PulseOxDisplay implements UiHandoff.State<PulseOxDisplay> {
+		private String pulseText;
+		private String oxText;
+		private String statusText;
+		private Boolean usable;
+		private Integer answerPulse;
+		private Integer answerOx;
+		private boolean beep = false;
+		// plethysmograph packets in arrival order, capped to what fits on the plot
+		private final List<int[]> pleths = new ArrayList<int[]>();
+		private int droppedPleths = 0;
+		
+		void addPleths(int[] packet) {
+			pleths.add(packet);
+			while ((pleths.size() - 1) * NoninPacket.PACKET_SIZE >= MAX_DATAPOINTS) {
+				pleths.remove(0);
+				droppedPleths += NoninPacket.PACKET_SIZE;
+			}
+		}
+		
+		public PulseOxDisplay mergeWith(PulseOxDisplay newer) {
+			if (newer.pulseText != null) {
+				pulseText = newer.pulseText;
+			}
+			if (newer.oxText != null) {
+				oxText = newer.oxText;
+			}
+			if (newer.statusText != null) {
+				statusText = newer.statusText;
+			}
+			if (newer.usable != null) {
+				usable = newer.usable;
+			}
+			if (newer.answerPulse != null) {
+				answerPulse = newer.answerPulse;
+			}
+			if (newer.answerOx != null) {
+				answerOx = newer.answerOx;
+			}
+			beep |= newer.beep;
+			droppedPleths += newer.droppedPleths;
+			for (int[] packet : newer.pleths) {
+				addPleths(packet);
+			}
+			return this;
+		}
 	}
 
 	@Override
@@ -343,27 +454,4 @@ public class PulseOxApplicationActivity extends BaseActivity {
 		setResult(RESULT_OK, intent);
 		finish();
 	}
-
-	private class DataProcessor extends AsyncTask<Void, Void, Void> {
-
-		private PulseOxApplicationActivity app;
-
-		public DataProcessor(PulseOxApplicationActivity app) {
-			this.app = app;
-		}
-
-		@Override
-		protected Void doInBackground(Void... params) {
-			while (!isCancelled()) {
-				app.processData();
-				try {
-					Thread.sleep(250);
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
-			return null;
-		}
-
-	}
 }
\ No newline at end of file
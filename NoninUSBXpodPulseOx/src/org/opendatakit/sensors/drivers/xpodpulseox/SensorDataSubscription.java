@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.drivers.xpodpulseox;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Delivers sensor data to a listener as it arrives. ODK Sensors only offers
+ * getSensorData, so underneath this is polling, but with an interval that
+ * follows the data: it halves towards the minimum while readings keep
+ * coming, polls again straight away when a poll came back full, and doubles
+ * towards the maximum while the sensor is idle.
+ *
+ * Polls run on a background thread of their own, so the Binder call and
+ * unparcelling the readings never block the UI thread. The listener is
+ * called on that thread too; it should reduce the readings and hand the
+ * result to the UI through a UiHandoff.
+ */
+class SensorDataSubscription {
+
+	private static final String TAG = "SensorDataSubscription";
+
+	/**
+	 * Where the readings come from, normally BaseActivity.getSensorData.
+	 */
+	interface Source {
+		/**
+		 * @return readings, or null if the sensor can't be read yet
+		 */
+		List<Bundle> fetch(long maxNumReadings) throws RemoteException;
+	}
+
+	interface Listener {
+		void onSensorData(List<Bundle> readings);
+	}
+
+	private final Source source;
+	private final Listener listener;
+	private final long minIntervalMs;
+	private final long maxIntervalMs;
+	private final int maxReadings;
+
+	private ScheduledExecutorService executor = null;
+	private volatile boolean running = false;
+	// bumped by wake() so the poll chain it replaces stops rescheduling
+	private int generation = 0;
+	private ScheduledFuture<?> nextPoll = null;
+	// only touched by polls, which run one at a time
+	private long interval;
+
+	/**
+	 * @param maxReadings readings asked for per poll, a full poll means more
+	 *                    are waiting
+	 */
+	SensorDataSubscription(Source source, Listener listener, long minIntervalMs, long maxIntervalMs,
+			int maxReadings) {
+		this.source = source;
+		this.listener = listener;
+		this.minIntervalMs = minIntervalMs;
+		this.maxIntervalMs = maxIntervalMs;
+		this.maxReadings = maxReadings;
+		this.interval = minIntervalMs;
+	}
+
+	synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		executor = Executors.newSingleThreadScheduledExecutor();
+		executor.execute(reset);
+		executor.execute(new Poll(++generation));
+	}
+
+	synchronized void stop() {
+		running = false;
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+			nextPoll = null;
+		}
+	}
+
+	/**
+	 * Poll again now, for example right after the sensor is started. The
+	 * regular schedule carries on from this poll instead of the one that was
+	 * pending.
+	 */
+	synchronized void wake() {
+		if (running) {
+			if (nextPoll != null) {
+				nextPoll.cancel(false);
+				nextPoll = null;
+			}
+			executor.execute(reset);
+			executor.execute(new Poll(++generation));
+		}
+	}
+
+	private synchronized boolean isCurrent(int pollGeneration) {
+		return running && pollGeneration == generation;
+	}
+
+	private synchronized void schedule(Poll poll, long delay) {
+		// a poll already running when wake() was called must not carry on
+		if (isCurrent(poll.generation)) {
+			nextPoll = executor.schedule(poll, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private final Runnable reset = new Runnable() {
+		public void run() {
+			interval = minIntervalMs;
+		}
+	};
+
+	private class Poll implements Runnable {
+		private final int generation;
+
+		Poll(int generation) {
+			this.generation = generation;
+		}
+
+		public void run() {
+			if (!isCurrent(generation)) {
+				return;
+			}
+
+			List<Bundle> readings = null;
+			try {
+				readings = source.fetch(maxReadings);
+			} catch (RemoteException e) {
+				Log.w(TAG, "getSensorData failed", e);
+			}
+
+			long delay;
+			if (readings == null || readings.isEmpty()) {
+				interval = Math.min(interval * 2, maxIntervalMs);
+				delay = interval;
+			} else {
+				interval = Math.max(interval / 2, minIntervalMs);
+				delay = (readings.size() >= maxReadings) ? 0 : interval;
+				listener.onSensorData(readings);
+			}
+
+			schedule(this, delay);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.usb.temperature;
+
+import org.opendatakit.sensors.DataSeries;
+
+import android.os.Bundle;
+
+/**
+ * Decodes the samples the bridge stored while no tablet was attached. Once
+ * a download is requested the bridge sends its backlog in full size bursts
+ * ahead of any live data. Each burst starts with a 4 byte little endian
+ * count of samples still stored after it, followed by samples in the normal
+ * layout. A burst is decoded into one bundle of parallel arrays rather than
+ * a bundle per sample, and the download ends with the burst reporting
+ * nothing left.
+ *
+ * Backlog timestamps are older than the live ones, so they are unwrapped
+ * backwards from the last live sample rather than forwards with it.
+ *
+ * Every download is a new session. Only packets that arrived after the
+ * current session started are bursts; live packets queued before it are not.
+ */
+class BacklogDownload {
+
+	static final String MSG_TYPE_BACKLOG = "backlog";
+	static final String TIMESTAMPS = "backlog_timestamps";
+	static final String SIXTEENTHS = "backlog_sixteenths";
+	static final String CHANNELS = "backlog_channels";
+	static final String RECEIVED = "backlog_received";
+	static final String REMAINING = "backlog_remaining";
+
+	private static final int HEADER_SIZE = 4;
+
+	private boolean active = false;
+	private int session = 0;
+	private TimestampUnwrapper timestamps;
+	private int received;
+
+	boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * @return the session packets arriving now belong to
+	 */
+	int getSession() {
+		return session;
+	}
+
+	/**
+	 * @return true if a packet queued in the given session is a burst
+	 */
+	boolean isBurst(int packetSession) {
+		return active && packetSession == session;
+	}
+
+	void start(TimestampUnwrapper live) {
+		active = true;
+		session++;
+		received = 0;
+		timestamps = new TimestampUnwrapper(live);
+	}
+
+	void cancel() {
+		active = false;
+	}
+
+	Bundle decode(byte[] burst, int numSamples, int sampleSize, int dataMask) {
+		// same little endian layout as the sample tick counter
+		long remaining = TimestampUnwrapper.readTicks(burst, 0);
+
+		// never read past a short burst
+		numSamples = Math.min(numSamples, (burst.length - HEADER_SIZE) / sampleSize);
+
+		int[] sixteenths = new int[numSamples];
+		long[] sampleTimes = new long[numSamples];
+		byte[] channels = (sampleSize > 6) ? new byte[numSamples] : null;
+
+		int offset = HEADER_SIZE;
+		for (int i = 0; i < numSamples; i++) {
+			if (channels != null) {
+				channels[i] = burst[offset++];
+			}
+			int raw = (((burst[offset] & 0xff) << 8) | (burst[offset + 1] & 0xff)) & dataMask;
+			sixteenths[i] = UsbTemperatureSensor.toSixteenths(raw);
+			sampleTimes[i] = timestamps.unwrap(TimestampUnwrapper.readTicks(burst, offset + 2));
+			offset += 6;
+		}
+
+		received += numSamples;
+		if (remaining == 0) {
+			active = false;
+		}
+
+		Bundle progress = new Bundle();
+		progress.putString(DataSeries.MSG_TYPE, MSG_TYPE_BACKLOG);
+		progress.putLongArray(TIMESTAMPS, sampleTimes);
+		progress.putIntArray(SIXTEENTHS, sixteenths);
+		if (channels != null) {
+			progress.putByteArray(CHANNELS, channels);
+		}
+		progress.putInt(RECEIVED, received);
+		progress.putLong(REMAINING, remaining);
+		return progress;
+	}
+}
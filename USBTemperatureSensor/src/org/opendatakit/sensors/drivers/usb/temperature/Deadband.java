@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.usb.temperature;
+
+/**
+ * Report-on-change filter. A reading is reported when it differs from the
+ * last reported value by more than delta, or when maxInterval has passed
+ * since the last report. Readings in between are dropped and counted; the
+ * count is attached to the next reported reading, so every dropped reading
+ * is known to lie within delta of the report before it.
+ *
+ * Values are in 1/16 degrees C, times in sample timestamp units.
+ */
+class Deadband {
+
+	private int delta = 0;
+	private long maxInterval = 0;
+
+	private boolean hasReported = false;
+	private int lastValue;
+	private long lastTime;
+	private int suppressed = 0;
+	private int coalesced = 0;
+
+	boolean isEnabled() {
+		return delta > 0;
+	}
+
+	/**
+	 * @param delta change needed to report, 0 disables the deadband
+	 */
+	void setDelta(int delta) {
+		this.delta = (delta < 0) ? 0 : delta;
+		reset();
+	}
+
+	/**
+	 * @param maxInterval longest time between reports, 0 for no limit
+	 */
+	void setMaxInterval(long maxInterval) {
+		this.maxInterval = (maxInterval < 0) ? 0 : maxInterval;
+	}
+
+	void reset() {
+		hasReported = false;
+		suppressed = 0;
+		coalesced = 0;
+	}
+
+	/**
+	 * @return true if the reading should be reported
+	 */
+	boolean report(int value, long timestamp) {
+		if (delta <= 0) {
+			return true;
+		}
+
+		if (hasReported && Math.abs(value - lastValue) <= delta
+				&& (maxInterval == 0 || timestamp - lastTime < maxInterval)) {
+			suppressed++;
+			return false;
+		}
+
+		coalesced = suppressed;
+		suppressed = 0;
+		hasReported = true;
+		lastValue = value;
+		lastTime = timestamp;
+		return true;
+	}
+
+	/**
+	 * @return number of readings dropped between the previous report and
+	 *         the one just accepted
+	 */
+	int getCoalesced() {
+		return coalesced;
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.usb.temperature;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opendatakit.sensors.SensorDataPacket;
+
+/**
+ * Packets getSensorData did not get to because of maxNumReadings. They stay
+ * queued in the driver until a later call rather than being laid out in
+ * remainingData and parsed back each time, so a call only touches the
+ * packets it actually parses and its cost does not grow with the backlog.
+ * A packet split at the limit keeps its series timestamp and the count of
+ * the samples still in it.
+ *
+ * Each packet also keeps the backlog session that was current when it was
+ * queued, so live packets already waiting when a download starts are not
+ * taken for backlog bursts.
+ */
+final class PendingPackets {
+
+	private static final class Entry {
+		final SensorDataPacket pkt;
+		final int session;
+
+		Entry(SensorDataPacket pkt, int session) {
+			this.pkt = pkt;
+			this.session = session;
+		}
+	}
+
+	private final ArrayDeque<Entry> packets = new ArrayDeque<Entry>();
+	private int lastSession = 0;
+
+	/**
+	 * Queues the packets of this call behind the ones left over from
+	 * earlier calls.
+	 *
+	 * @param session the backlog session current when the packets arrived
+	 */
+	void addAll(List<SensorDataPacket> rawData, int session) {
+		for (SensorDataPacket pkt : rawData) {
+			packets.add(new Entry(pkt, session));
+		}
+	}
+
+	boolean isEmpty() {
+		return packets.isEmpty();
+	}
+
+	/**
+	 * @return the oldest queued packet, or null if there are none
+	 */
+	SensorDataPacket next() {
+		Entry entry = packets.poll();
+		if (entry == null) {
+			return null;
+		}
+		lastSession = entry.session;
+		return entry.pkt;
+	}
+
+	/**
+	 * @return the backlog session of the packet last returned by next
+	 */
+	int lastSession() {
+		return lastSession;
+	}
+
+	/**
+	 * Puts a packet back at the head of the queue for the next call, with
+	 * the session of the packet last returned by next.
+	 */
+	void putBack(SensorDataPacket pkt) {
+		packets.addFirst(new Entry(pkt, lastSession));
+	}
+
+	/**
+	 * Puts the part of a packet from byteOffset on back at the head of the
+	 * queue, with the sample count reduced by the samples before it.
+	 */
+	void putBackTail(SensorDataPacket pkt, int byteOffset, int samplesSkipped) {
+		byte[] payload = pkt.getPayload();
+		putBack(new SensorDataPacket(Arrays.copyOfRange(payload, byteOffset, payload.length),
+				pkt.getTime(), Math.max(0, pkt.getSizeOfSeries() - samplesSkipped)));
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.usb.temperature;
+
+/**
+ * Per probe state for a 1-Wire bus with several DS18B20 probes on one
+ * bridge. Each probe keeps its own alarm and deadband state so readings from
+ * one probe never trigger or suppress readings from another.
+ */
+class ProbeChannel {
+
+	static final String CHANNEL = "channel";
+
+	final int channel;
+	final ThresholdAlarm highAlarm;
+	final ThresholdAlarm lowAlarm;
+	final Deadband deadband = new Deadband();
+	// readings waiting to go out as one encoded series
+	final SeriesCodec.Encoder series = new SeriesCodec.Encoder();
+
+	ProbeChannel(int channel) {
+		this.channel = channel;
+		highAlarm = new ThresholdAlarm(true, channel);
+		lowAlarm = new ThresholdAlarm(false, channel);
+	}
+}
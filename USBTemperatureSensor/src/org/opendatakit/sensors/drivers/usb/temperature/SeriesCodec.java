@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.usb.temperature;
+
+/**
+ * Compact encoding for a series of (timestamp, value) samples. The series is
+ * a varint sample count followed by, for each sample, the change in
+ * timestamp and the change in value from the previous sample (both starting
+ * from 0) as zig-zag varints. Slowly changing series take one or two bytes
+ * per sample.
+ *
+ * The class has no dependencies so consumers can copy it to decode the
+ * byte[] the driver reports.
+ */
+public final class SeriesCodec {
+
+	private SeriesCodec() {
+	}
+
+	/**
+	 * Accumulates samples and produces the encoded series.
+	 */
+	public static final class Encoder {
+
+		private byte[] buf = new byte[64];
+		private int len = 0;
+		private int count = 0;
+		private long lastTime = 0;
+		private int lastValue = 0;
+
+		public void add(long timestamp, int value) {
+			ensureCapacity(15);
+			writeZigZag(timestamp - lastTime);
+			writeZigZag((long) value - lastValue);
+			lastTime = timestamp;
+			lastValue = value;
+			count++;
+		}
+
+		public int size() {
+			return count;
+		}
+
+		public byte[] toByteArray() {
+			byte[] header = new byte[5];
+			int headerLen = writeVarint(header, 0, count);
+			byte[] out = new byte[headerLen + len];
+			System.arraycopy(header, 0, out, 0, headerLen);
+			System.arraycopy(buf, 0, out, headerLen, len);
+			return out;
+		}
+
+		public void reset() {
+			len = 0;
+			count = 0;
+			lastTime = 0;
+			lastValue = 0;
+		}
+
+		private void ensureCapacity(int extra) {
+			if (len + extra > buf.length) {
+				byte[] grown = new byte[Math.max(buf.length * 2, len + extra)];
+				System.arraycopy(buf, 0, grown, 0, len);
+				buf = grown;
+			}
+		}
+
+		private void writeZigZag(long v) {
+			len = writeVarint(buf, len, (v << 1) ^ (v >> 63));
+		}
+	}
+
+	/**
+	 * @return the number of samples in an encoded series
+	 */
+	public static int count(byte[] encoded) {
+		return (int) readVarint(encoded, new int[1]);
+	}
+
+	/**
+	 * Decodes a series into the given arrays, which must hold at least
+	 * count(encoded) entries.
+	 *
+	 * @return the number of samples decoded
+	 */
+	public static int decode(byte[] encoded, long[] timestamps, int[] values) {
+		int[] pos = new int[1];
+		int n = (int) readVarint(encoded, pos);
+		long time = 0;
+		int value = 0;
+		for (int i = 0; i < n; i++) {
+			time += readZigZag(encoded, pos);
+			value += (int) readZigZag(encoded, pos);
+			timestamps[i] = time;
+			values[i] = value;
+		}
+		return n;
+	}
+
+	private static int writeVarint(byte[] dest, int pos, long v) {
+		while ((v & ~0x7FL) != 0) {
+			dest[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		dest[pos++] = (byte) v;
+		return pos;
+	}
+
+	private static long readVarint(byte[] src, int[] pos) {
+		long v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = src[pos[0]++];
+			v |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return v;
+	}
+
+	private static long readZigZag(byte[] src, int[] pos) {
+		long v = readVarint(src, pos);
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.usb.temperature;
+
+import java.util.List;
+
+import org.opendatakit.sensors.DataSeries;
+
+import android.os.Bundle;
+
+/**
+ * Edge triggered temperature alarm with hysteresis. An excursion starts when
+ * a reading crosses the threshold and ends only once the reading is back
+ * past the threshold by the hysteresis band, so noise around the threshold
+ * does not produce a stream of events. One "onset" record is emitted when
+ * the excursion starts and one "clear" record, carrying the peak, when it
+ * ends. State is kept across calls so excursions spanning several
+ * getSensorData calls are reported once.
+ *
+ * All values are in 1/16 degrees C.
+ */
+class ThresholdAlarm {
+
+	static final String ALARM_TYPE = "alarm_type";
+	static final String ALARM_EDGE = "alarm_edge";
+	static final String ALARM_ONSET = "alarm_onset";
+	static final String ALARM_END = "alarm_end";
+	static final String ALARM_PEAK = "alarm_peak";
+
+	static final String TYPE_HIGH = "high";
+	static final String TYPE_LOW = "low";
+	static final String EDGE_ONSET = "onset";
+	static final String EDGE_CLEAR = "clear";
+
+	private static final String MSG_TYPE_ALERT = "alert";
+
+	private final boolean high;
+	private final int channel;
+
+	private boolean armed = false;
+	private int threshold;
+	private int hysteresis;
+
+	private boolean inExcursion = false;
+	private long onsetTime;
+	private int peak;
+
+	ThresholdAlarm(boolean high, int channel) {
+		this.high = high;
+		this.channel = channel;
+	}
+
+	void setThreshold(int threshold) {
+		this.threshold = threshold;
+		armed = true;
+		inExcursion = false;
+	}
+
+	void setHysteresis(int hysteresis) {
+		this.hysteresis = (hysteresis < 0) ? 0 : hysteresis;
+	}
+
+	void disarm() {
+		armed = false;
+		inExcursion = false;
+	}
+
+	/**
+	 * Evaluate one reading, appending an alarm record to events on each edge.
+	 */
+	void update(int sixteenths, long timestamp, List<Bundle> events) {
+		if (!armed) {
+			return;
+		}
+
+		if (!inExcursion) {
+			if (high ? sixteenths > threshold : sixteenths < threshold) {
+				inExcursion = true;
+				onsetTime = timestamp;
+				peak = sixteenths;
+				events.add(createEvent(EDGE_ONSET, timestamp));
+			}
+			return;
+		}
+
+		if (high ? sixteenths > peak : sixteenths < peak) {
+			peak = sixteenths;
+		}
+
+		if (high ? sixteenths <= threshold - hysteresis : sixteenths >= threshold + hysteresis) {
+			inExcursion = false;
+			events.add(createEvent(EDGE_CLEAR, timestamp));
+		}
+	}
+
+	private Bundle createEvent(String edge, long timestamp) {
+		Bundle event = new Bundle();
+		event.putString(DataSeries.MSG_TYPE, MSG_TYPE_ALERT);
+		event.putLong(DataSeries.SERIES_TIMESTAMP, timestamp);
+		event.putInt(ProbeChannel.CHANNEL, channel);
+		event.putString(ALARM_TYPE, high ? TYPE_HIGH : TYPE_LOW);
+		event.putString(ALARM_EDGE, edge);
+		event.putLong(ALARM_ONSET, onsetTime);
+		event.putFloat(ALARM_PEAK, peak * UsbTemperatureSensor.SENSOR_RESOLUTION);
+		if (EDGE_CLEAR.equals(edge)) {
+			event.putLong(ALARM_END, timestamp);
+		}
+		return event;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.usb.temperature;
+
+/**
+ * Extends the 32 bit tick counter the USB bridge puts on each sample to a
+ * monotonically increasing 64 bit value. The epoch is kept in the driver, so
+ * a wrap is detected no matter how the samples are split across
+ * getSensorData calls. A step backwards of more than half the counter range
+ * is taken as a wrap. A smaller step backwards that lands closer to zero
+ * than to the last count is taken as the bridge resetting its counter, and
+ * time carries on from the last value. Any other step backwards is a late
+ * sample and gets the last value again, so the result never decreases.
+ */
+class TimestampUnwrapper {
+
+	private static final long COUNTER_MASK = 0xFFFFFFFFL;
+	private static final long COUNTER_RANGE = 1L << 32;
+	private static final long HALF_RANGE = 1L << 31;
+
+	private boolean started = false;
+	private long lastTicks;
+	private long epoch = 0;
+	private final boolean backwards;
+
+	TimestampUnwrapper() {
+		backwards = false;
+	}
+
+	/**
+	 * An unwrapper for samples taken before the ones the live unwrapper has
+	 * seen so far, such as a backlog download. Each count is placed at the
+	 * latest time with those ticks that is not after the last live sample.
+	 * If there has been no live sample yet, counting starts from 0 as usual.
+	 */
+	TimestampUnwrapper(TimestampUnwrapper live) {
+		started = live.started;
+		lastTicks = live.lastTicks;
+		epoch = live.epoch;
+		backwards = live.started;
+	}
+
+	/**
+	 * Reads a little endian 32 bit counter without sign extending it.
+	 */
+	static long readTicks(byte[] data, int offset) {
+		return (((data[offset + 3] & 0xff) << 24)
+				| ((data[offset + 2] & 0xff) << 16)
+				| ((data[offset + 1] & 0xff) << 8)
+				| (data[offset] & 0xff)) & COUNTER_MASK;
+	}
+
+	long unwrap(long ticks) {
+		ticks &= COUNTER_MASK;
+		if (backwards) {
+			return epoch + lastTicks - ((lastTicks - ticks) & COUNTER_MASK);
+		}
+		if (started) {
+			long back = lastTicks - ticks;
+			if (back > HALF_RANGE) {
+				epoch += COUNTER_RANGE;
+			} else if (back > 0) {
+				if (ticks >= back) {
+					// late, keep counting from the newest ticks seen
+					return epoch + lastTicks;
+				}
+				epoch += lastTicks;
+			}
+		}
+		started = true;
+		lastTicks = ticks;
+		return epoch + ticks;
+	}
+}
@@ -17,7 +17,6 @@
 package org.opendatakit.sensors.drivers.usb.temperature;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import org.opendatakit.sensors.DataSeries;
@@ -36,16 +35,66 @@ public class UsbTemperatureSensor extends AbstractDriverBaseV2 {
 	private static final String SAMPLING_RATE = "SR";
 	private static final String READ_RATE = "RR";
 	private static final String ALARM_THRESHOLD = "AT";
+	private static final String RESOLUTION = "RS";
+	private static final String MULTI_PROBE = "MP";
+	private static final String BACKLOG = "BL";
+	// driver side settings, nothing is sent to the bridge for these
+	private static final String NUMERIC_MODE = "NM";
+	private static final String HIGH_ALARM = "HA";
+	private static final String LOW_ALARM = "LA";
+	private static final String ALARM_HYSTERESIS = "HY";
+	private static final float DEFAULT_ALARM_HYSTERESIS = 0.5F;
+	private static final String DEADBAND = "DB";
+	private static final String DEADBAND_INTERVAL = "DI";
+	private static final String COMPACT_ENCODING = "CE";
+	private static final String READ_RATE_MIN = "RL";
+	private static final String READ_RATE_MAX = "RH";
 
 	private static final String RAW_LOW = "raw_low";
 	private static final String RAW_HI = "raw_hi";
+	private static final String SAMPLE_SIXTEENTHS = "sample_sixteenths";
+	private static final String SAMPLE_CELSIUS = "sample_celsius";
+	private static final String COALESCED = "coalesced";
+	private static final String ENCODED_SERIES = "encoded_series";
+	private static final String MSG_TYPE_SERIES = "series";
+
+	// values of NUMERIC_MODE
+	private static final int OUTPUT_STRING = 0;
+	private static final int OUTPUT_SIXTEENTHS = 1;
+	private static final int OUTPUT_CELSIUS = 2;
 	
 	private static final String TAG = "TemperatureSensor";
-	private float SENSOR_RESOLUTION = 0.0625F; // 12 bit precision ds18b20
+	static final float SENSOR_RESOLUTION = 0.0625F; // 12 bit precision ds18b20
 												// sensor
-	private int DATABITSMASK = 0x7FF; // 11 bits of data excluding the sign bit
-	private int SIGNBITMASK = 0x800; // 12th bit is the sign bit
-	private char signchr = '+';
+	private static final int RAW_MASK = 0xFFF; // 11 bits of data plus the sign bit
+	private static final int MIN_RESOLUTION_BITS = 9;
+	private static final int MAX_RESOLUTION_BITS = 12;
+
+	// single probe: 2 byte temp reading, 4 byte timestamp.
+	// multi probe: 1 byte channel index followed by the same 6 bytes
+	private static final int SAMPLE_SIZE = 6;
+	private static final int MULTI_PROBE_SAMPLE_SIZE = 7;
+	private static final int MAX_PROBES = 16;
+
+	// degrees C for every 12 bit scratchpad value, built once per process
+	private static final float[] CELSIUS_TABLE = new float[RAW_MASK + 1];
+	static {
+		for (int raw = 0; raw <= RAW_MASK; raw++) {
+			CELSIUS_TABLE[raw] = SENSOR_RESOLUTION * toSixteenths(raw);
+		}
+	}
+
+	private int outputMode = OUTPUT_STRING;
+	// at lower resolutions the ds18b20 leaves the low register bits undefined
+	private int dataMask = RAW_MASK;
+	private boolean compactEncoding = false;
+
+	private boolean multiProbe = false;
+	private final ProbeChannel[] probes = new ProbeChannel[MAX_PROBES];
+	private final TimestampUnwrapper timestamps = new TimestampUnwrapper();
+	private final BacklogDownload backlog = new BacklogDownload();
+	private final ReadRateController rateController = new ReadRateController();
+	private final PendingPackets pending = new PendingPackets();
 
 	public UsbTemperatureSensor() {
 		super();
@@ -54,12 +103,47 @@ public class UsbTemperatureSensor extends AbstractDriverBaseV2 {
 		sensorParams.add(new SensorParameter(SAMPLING_RATE, SensorParameter.Type.INTEGER, SensorParameter.Purpose.CONFIG, "Sensor sampling rate"));
 		sensorParams.add(new SensorParameter(READ_RATE, SensorParameter.Type.INTEGER, SensorParameter.Purpose.CONFIG, "Rate at which readings are proccessed"));
 		sensorParams.add(new SensorParameter(ALARM_THRESHOLD, SensorParameter.Type.INTEGER, SensorParameter.Purpose.CONFIG, "Alarm threshold value"));
+		sensorParams.add(new SensorParameter(RESOLUTION, SensorParameter.Type.INTEGER, SensorParameter.Purpose.CONFIG, "Sensor resolution in bits (9-12), lower is faster"));
+		sensorParams.add(new SensorParameter(MULTI_PROBE, SensorParameter.Type.INTEGER, SensorParameter.Purpose.CONFIG, "Number of probes on the 1-Wire bus (up to 16)"));
+		sensorParams.add(new SensorParameter(BACKLOG, SensorParameter.Type.INTEGER, SensorParameter.Purpose.CONFIG, "1 downloads the samples stored on the bridge in full size bursts, 0 cancels"));
+		sensorParams.add(new SensorParameter(NUMERIC_MODE, SensorParameter.Type.INTEGER, SensorParameter.Purpose.CONFIG, "Sample output: 0 string, 1 int in 1/16 C, 2 float C"));
+		sensorParams.add(new SensorParameter(HIGH_ALARM, SensorParameter.Type.FLOAT, SensorParameter.Purpose.CONFIG, "Raise an alarm event above this temperature (C), NaN turns the alarm off"));
+		sensorParams.add(new SensorParameter(LOW_ALARM, SensorParameter.Type.FLOAT, SensorParameter.Purpose.CONFIG, "Raise an alarm event below this temperature (C), NaN turns the alarm off"));
+		sensorParams.add(new SensorParameter(ALARM_HYSTERESIS, SensorParameter.Type.FLOAT, SensorParameter.Purpose.CONFIG, "Distance back past the threshold (C) before an alarm clears"));
+		sensorParams.add(new SensorParameter(DEADBAND, SensorParameter.Type.FLOAT, SensorParameter.Purpose.CONFIG, "Only report a sample that moved more than this (C) from the last report, 0 disables; not applied while CE is on"));
+		sensorParams.add(new SensorParameter(DEADBAND_INTERVAL, SensorParameter.Type.LONG, SensorParameter.Purpose.CONFIG, "Longest time between deadband reports, in sample timestamp units (0 for no limit)"));
+		sensorParams.add(new SensorParameter(READ_RATE_MIN, SensorParameter.Type.INTEGER, SensorParameter.Purpose.CONFIG, "Lowest read rate the driver suggests"));
+		sensorParams.add(new SensorParameter(READ_RATE_MAX, SensorParameter.Type.INTEGER, SensorParameter.Purpose.CONFIG, "Highest read rate the driver suggests, 0 disables suggestions"));
+		sensorParams.add(new SensorParameter(COMPACT_ENCODING, SensorParameter.Type.INTEGER, SensorParameter.Purpose.CONFIG, "1 reports each batch as one SeriesCodec encoded series per probe instead of a bundle per reading"));
 
 		// data reporting parameters
 		sensorParams.add(new SensorParameter(DataSeries.SERIES_TIMESTAMP, SensorParameter.Type.LONG, SensorParameter.Purpose.DATA, "Series Timestamp"));
+		sensorParams.add(new SensorParameter(ProbeChannel.CHANNEL, SensorParameter.Type.INTEGER, SensorParameter.Purpose.DATA, "Index of the probe the reading came from"));
 		sensorParams.add(new SensorParameter(DataSeries.SAMPLE, SensorParameter.Type.STRING, SensorParameter.Purpose.DATA, "Data Sample"));
 		sensorParams.add(new SensorParameter(RAW_LOW, SensorParameter.Type.INTEGER, SensorParameter.Purpose.DATA, "Low raw byte value"));
 		sensorParams.add(new SensorParameter(RAW_HI, SensorParameter.Type.INTEGER, SensorParameter.Purpose.DATA, "High raw byte value"));
+		sensorParams.add(new SensorParameter(SAMPLE_SIXTEENTHS, SensorParameter.Type.INTEGER, SensorParameter.Purpose.DATA, "Temperature in 1/16 degrees C"));
+		sensorParams.add(new SensorParameter(SAMPLE_CELSIUS, SensorParameter.Type.FLOAT, SensorParameter.Purpose.DATA, "Temperature in degrees C"));
+		sensorParams.add(new SensorParameter(ENCODED_SERIES, SensorParameter.Type.BYTEARRAY, SensorParameter.Purpose.DATA, "Compact encoding: timestamps and 1/16 C readings of one probe, decode with SeriesCodec"));
+		sensorParams.add(new SensorParameter(ReadRateController.READ_RATE_REQUEST, SensorParameter.Type.INTEGER, SensorParameter.Purpose.DATA, "Read rate the driver suggests; apply it by configuring RR"));
+		sensorParams.add(new SensorParameter(COALESCED, SensorParameter.Type.INTEGER, SensorParameter.Purpose.DATA, "Deadband: samples dropped since the previous report, all within the deadband of it"));
+		sensorParams.add(new SensorParameter(ThresholdAlarm.ALARM_TYPE, SensorParameter.Type.STRING, SensorParameter.Purpose.DATA, "Alarm event: high or low"));
+		sensorParams.add(new SensorParameter(ThresholdAlarm.ALARM_EDGE, SensorParameter.Type.STRING, SensorParameter.Purpose.DATA, "Alarm event: onset or clear"));
+		sensorParams.add(new SensorParameter(ThresholdAlarm.ALARM_ONSET, SensorParameter.Type.LONG, SensorParameter.Purpose.DATA, "Alarm event: timestamp the excursion started"));
+		sensorParams.add(new SensorParameter(ThresholdAlarm.ALARM_END, SensorParameter.Type.LONG, SensorParameter.Purpose.DATA, "Alarm event: timestamp the excursion cleared"));
+		sensorParams.add(new SensorParameter(ThresholdAlarm.ALARM_PEAK, SensorParameter.Type.FLOAT, SensorParameter.Purpose.DATA, "Alarm event: peak temperature (C) of the excursion"));
+		sensorParams.add(new SensorParameter(BacklogDownload.TIMESTAMPS, SensorParameter.Type.LONGARRAY, SensorParameter.Purpose.DATA, "Backlog: timestamp of each stored sample in the burst"));
+		sensorParams.add(new SensorParameter(BacklogDownload.SIXTEENTHS, SensorParameter.Type.INTEGERARRAY, SensorParameter.Purpose.DATA, "Backlog: temperature of each stored sample in 1/16 C"));
+		sensorParams.add(new SensorParameter(BacklogDownload.CHANNELS, SensorParameter.Type.BYTEARRAY, SensorParameter.Purpose.DATA, "Backlog: probe index of each stored sample, multi probe only"));
+		sensorParams.add(new SensorParameter(BacklogDownload.RECEIVED, SensorParameter.Type.INTEGER, SensorParameter.Purpose.DATA, "Backlog: stored samples received so far"));
+		sensorParams.add(new SensorParameter(BacklogDownload.REMAINING, SensorParameter.Type.LONG, SensorParameter.Purpose.DATA, "Backlog: stored samples still on the bridge, 0 when done"));
+
+		int hysteresis = Math.round(DEFAULT_ALARM_HYSTERESIS / SENSOR_RESOLUTION);
+		for (int i = 0; i < MAX_PROBES; i++) {
+			probes[i] = new ProbeChannel(i);
+			probes[i].highAlarm.setHysteresis(hysteresis);
+			probes[i].lowAlarm.setHysteresis(hysteresis);
+		}
 	}
 
 	@Override
@@ -84,10 +168,89 @@ public class UsbTemperatureSensor extends AbstractDriverBaseV2 {
 			return USBParamUtil.createSamplingRateMsg(samplingRate);
 		} else if(setting.equals(READ_RATE)) {
 			int readRate = params.getInt(READ_RATE); //reading rate
+			rateController.setActiveRate(readRate);
 			return USBParamUtil.createReadRateMsg(readRate);
+		} else if(setting.equals(READ_RATE_MIN)) {
+			rateController.setMinRate(params.getInt(READ_RATE_MIN));
+			return new byte[0];
+		} else if(setting.equals(READ_RATE_MAX)) {
+			// 0 turns the read rate suggestions off
+			rateController.setMaxRate(params.getInt(READ_RATE_MAX));
+			return new byte[0];
 		} else if(setting.equals(ALARM_THRESHOLD)) {
 			int readRate = params.getInt(ALARM_THRESHOLD); //alarm threshold
 			return USBParamUtil.createAlertThresholdMsg(readRate);
+		} else if(setting.equals(RESOLUTION)) {
+			int bits = params.getInt(RESOLUTION);
+			if (bits < MIN_RESOLUTION_BITS || bits > MAX_RESOLUTION_BITS) {
+				throw new ParameterMissingException("Resolution must be 9 to 12 bits");
+			}
+			// readings stay in 1/16 C, each bit dropped clears one more low bit
+			dataMask = RAW_MASK & ~((1 << (MAX_RESOLUTION_BITS - bits)) - 1);
+			return USBParamUtil.createOneByteMsg(RESOLUTION, (byte) bits);
+		} else if(setting.equals(MULTI_PROBE)) {
+			int numProbes = params.getInt(MULTI_PROBE);
+			if (numProbes < 0 || numProbes > MAX_PROBES) {
+				throw new ParameterMissingException("Number of probes must be 0 to " + MAX_PROBES);
+			}
+			multiProbe = (numProbes > 1);
+			return USBParamUtil.createOneByteMsg(MULTI_PROBE, (byte) numProbes);
+		} else if(setting.equals(BACKLOG)) {
+			if (params.getInt(BACKLOG) != 0) {
+				backlog.start(timestamps);
+				return USBParamUtil.createOneByteMsg(BACKLOG, (byte) 1);
+			}
+			backlog.cancel();
+			return USBParamUtil.createOneByteMsg(BACKLOG, (byte) 0);
+		} else if(setting.equals(NUMERIC_MODE)) {
+			outputMode = params.getInt(NUMERIC_MODE);
+			return new byte[0];
+		} else if(setting.equals(HIGH_ALARM)) {
+			float celsius = params.getFloat(HIGH_ALARM);
+			for (ProbeChannel probe : probes) {
+				if (Float.isNaN(celsius)) {
+					probe.highAlarm.disarm();
+				} else {
+					probe.highAlarm.setThreshold(Math.round(celsius / SENSOR_RESOLUTION));
+				}
+			}
+			return new byte[0];
+		} else if(setting.equals(LOW_ALARM)) {
+			float celsius = params.getFloat(LOW_ALARM);
+			for (ProbeChannel probe : probes) {
+				if (Float.isNaN(celsius)) {
+					probe.lowAlarm.disarm();
+				} else {
+					probe.lowAlarm.setThreshold(Math.round(celsius / SENSOR_RESOLUTION));
+				}
+			}
+			return new byte[0];
+		} else if(setting.equals(ALARM_HYSTERESIS)) {
+			int hysteresis = Math.round(params.getFloat(ALARM_HYSTERESIS) / SENSOR_RESOLUTION);
+			for (ProbeChannel probe : probes) {
+				probe.highAlarm.setHysteresis(hysteresis);
+				probe.lowAlarm.setHysteresis(hysteresis);
+			}
+			return new byte[0];
+		} else if(setting.equals(COMPACT_ENCODING)) {
+			compactEncoding = (params.getInt(COMPACT_ENCODING) != 0);
+			for (ProbeChannel probe : probes) {
+				probe.series.reset();
+				probe.deadband.reset();
+			}
+			return new byte[0];
+		} else if(setting.equals(DEADBAND)) {
+			int delta = Math.round(params.getFloat(DEADBAND) / SENSOR_RESOLUTION);
+			for (ProbeChannel probe : probes) {
+				probe.deadband.setDelta(delta);
+			}
+			return new byte[0];
+		} else if(setting.equals(DEADBAND_INTERVAL)) {
+			long interval = params.getLong(DEADBAND_INTERVAL);
+			for (ProbeChannel probe : probes) {
+				probe.deadband.setMaxInterval(interval);
+			}
+			return new byte[0];
 		}
 		throw new ParameterMissingException("Unknown Setting");
 	}
@@ -100,11 +263,60 @@ public class UsbTemperatureSensor extends AbstractDriverBaseV2 {
 		// Log.e(TAG," getSensorData. cntr: " + cntr);
 		List<Bundle> allData = new ArrayList<Bundle>();
 
-		for (Iterator<SensorDataPacket> iter = rawData.iterator(); iter
-				.hasNext();) {
-			List<Bundle> data = parsePayload(iter.next());
-			allData.addAll(data);
-			iter.remove();// XXX delete from local buffer??
+		// 0 or less means no limit
+		long budget = (maxNumReadings > 0) ? maxNumReadings : Long.MAX_VALUE;
+		// packets left over from earlier calls are queued in the driver, so
+		// remainingData is not used
+		pending.addAll(rawData, backlog.getSession());
+		
+		int numParsed = 0;
+		SensorDataPacket pkt;
+		while (budget > 0 && (pkt = pending.next()) != null) {
+			int numSamples = pkt.getSizeOfSeries();
+			int take = (int) Math.min(numSamples, budget);
+			// backlog bursts arrive ahead of live data until the bridge has
+			// none left, but live packets queued before BL are still live
+			boolean burst = backlog.isBurst(pending.lastSession());
+			if (take < numSamples && !burst) {
+				// a backlog burst is never split, its header only leads the first part
+				int sampleSize = multiProbe ? MULTI_PROBE_SAMPLE_SIZE : SAMPLE_SIZE;
+				pending.putBackTail(pkt, take * sampleSize, take);
+				pkt = new SensorDataPacket(pkt.getPayload(), pkt.getTime(), take);
+			} else {
+				take = numSamples;
+			}
+			budget -= take;
+			numParsed += take;
+			
+			if (burst) {
+				allData.add(backlog.decode(pkt.getPayload(), take,
+						multiProbe ? MULTI_PROBE_SAMPLE_SIZE : SAMPLE_SIZE, dataMask));
+			} else {
+				List<Bundle> data = parsePayload(pkt);
+				allData.addAll(data);
+			}
+		}
+
+		if (compactEncoding) {
+			for (ProbeChannel probe : probes) {
+				if (probe.series.size() > 0) {
+					Bundle series = new Bundle();
+					series.putString(DataSeries.MSG_TYPE, MSG_TYPE_SERIES);
+					series.putInt(ProbeChannel.CHANNEL, probe.channel);
+					series.putByteArray(ENCODED_SERIES, probe.series.toByteArray());
+					allData.add(series);
+					probe.series.reset();
+				}
+			}
+		}
+
+		// samples, not bundles: compact series, the deadband and backlog
+		// bursts report many samples in fewer bundles
+		int requestedRate = rateController.update(numParsed, !pending.isEmpty());
+		if (requestedRate > 0) {
+			// the driver cannot write to the bridge on its own, so the caller
+			// applies the request by configuring RR with the suggested value
+			allData.add(ReadRateController.createRequest(requestedRate));
 		}
 
 		return new SensorDataParseResponse(allData, null);
@@ -113,6 +325,8 @@ public class UsbTemperatureSensor extends AbstractDriverBaseV2 {
 	public List<Bundle> parsePayload(SensorDataPacket sdp) {
 		// 4 bytes timestamp, 1 byte numSamples, 6 bytes each for each temp sample: 
 		//4 bytes timestamp, 2 byte temp reading
+		// with several probes (MP > 1) each sample is 7 bytes: 1 byte probe
+		// index followed by the 6 bytes above
 				
 		byte [] dataseries = sdp.getPayload();
 		long seriesTimestamp = sdp.getTime();
@@ -144,46 +358,69 @@ public class UsbTemperatureSensor extends AbstractDriverBaseV2 {
 		long sampleTimestamp;
 		List<Bundle> tempSamples = new ArrayList<Bundle>();		
 
+		int sampleSize = multiProbe ? MULTI_PROBE_SAMPLE_SIZE : SAMPLE_SIZE;
+		
 		for (int i = 0; i < numSamples; i++) {
-			msByte = (tempBuff[(6 * i)] & 0xff); 	// mask off sign bit and															 
+			int offset = sampleSize * i;
+			ProbeChannel probe = probes[0];
+			if (multiProbe) {
+				int channel = tempBuff[offset++] & 0xff;
+				if (channel >= MAX_PROBES) {
+					Log.w(TAG, "dropping sample from unknown probe: " + channel);
+					continue;
+				}
+				probe = probes[channel];
+			}
+			
+			msByte = (tempBuff[offset] & 0xff); 	// mask off sign bit and															 
 																// prevent sign bit extension
 																// due to promotion			
-			lsByte = (tempBuff[1 + (6 * i)] & 0xff);
+			lsByte = (tempBuff[offset + 1] & 0xff);
 
-			sampleTimestamp = ((tempBuff[5 + (6*i)] & 0xff) << 24)
-					| ((tempBuff[4 + (6*i)] & 0xff) << 16)
-					| ((tempBuff[3 + (6*i)] & 0xff) << 8) 
-					| (tempBuff[2 + (6*i)] & 0xff);						
+			// the bridge stamps every probe from the same counter
+			sampleTimestamp = timestamps.unwrap(TimestampUnwrapper.readTicks(tempBuff, offset + 2));
 						
-			int concat = ((msByte << 8) | lsByte); // 16 bit scratchpad register
-													// value
-			concat = concat & 0xffff;
-			if ((concat & SIGNBITMASK) == SIGNBITMASK) {
-				// negative temp
-				concat = ~concat + 1;// (concat ^ 0xffff) + 1;
-				signchr = '-';
+			int raw = ((msByte << 8) | lsByte) & dataMask; // low 12 bits of the
+														// scratchpad register
+			int sixteenths = toSixteenths(raw);
+			
+			// compact series carry every sample, since they have no room for
+			// the coalesced count the full series would be rebuilt from; a
+			// flat stretch only costs a couple of bytes a sample there anyway
+			boolean report = compactEncoding || probe.deadband.report(sixteenths, sampleTimestamp);
+			if (report && compactEncoding) {
+				probe.series.add(sampleTimestamp, sixteenths);
+			} else if (report) {
+				Bundle sample = new Bundle();
+				
+				sample.putString(DataSeries.MSG_TYPE, "report"); // another type would
+																// be alert.
+				
+				sample.putLong(DataSeries.SERIES_TIMESTAMP, sampleTimestamp);
+				sample.putInt(ProbeChannel.CHANNEL, probe.channel);
+				if (outputMode == OUTPUT_SIXTEENTHS) {
+					sample.putInt(SAMPLE_SIXTEENTHS, sixteenths);
+				} else if (outputMode == OUTPUT_CELSIUS) {
+					sample.putFloat(SAMPLE_CELSIUS, CELSIUS_TABLE[raw]);
+				} else {
+					String tempstr = formatTemp(raw);
+					Log.d(TAG, "timestamp: " + sampleTimestamp + " probe: " + probe.channel
+							+ " temp raw bytes: hi: " + msByte + " lo: " + lsByte + " decoded: " + tempstr);
+					sample.putString(DataSeries.SAMPLE, tempstr);
+				}
+				sample.putInt(RAW_HI, msByte);
+				sample.putInt(RAW_LOW, lsByte);
+				if (probe.deadband.isEnabled()) {
+					sample.putInt(COALESCED, probe.deadband.getCoalesced());
+				}
+				
+				tempSamples.add(sample);
 			}
-			int databits = DATABITSMASK & concat;
-
-			float temp = SENSOR_RESOLUTION * databits;
-			// System.out.printf("temp is: %f\n",temp);
 
-			String tempstr = signchr + Float.toString(temp);
-			
-			Log.d(TAG, "timestamp: " + sampleTimestamp + " temp raw bytes: hi: " + msByte + " lo: " 
-					+ lsByte + " decoded: " + tempstr);
-			
-			Bundle sample = new Bundle();
-			
-			sample.putString(DataSeries.MSG_TYPE, "report"); // another type would
-															// be alert.
-			
-			sample.putLong(DataSeries.SERIES_TIMESTAMP, sampleTimestamp);
-			sample.putString(DataSeries.SAMPLE, tempstr);
-			sample.putInt(RAW_HI, msByte);
-			sample.putInt(RAW_LOW, lsByte);
-			
-			tempSamples.add(sample);						
+			// alarms see every reading, including ones the deadband drops,
+			// and their events follow the sample that triggered them
+			probe.highAlarm.update(sixteenths, sampleTimestamp, tempSamples);
+			probe.lowAlarm.update(sixteenths, sampleTimestamp, tempSamples);
 		}
 
 		return tempSamples;
@@ -202,25 +439,33 @@ public class UsbTemperatureSensor extends AbstractDriverBaseV2 {
 																// promotion
 			lsByte = (tempBuff[(2 * i) + 1] & 0xff);
 			Log.d(TAG, "temp raw bytes: hi: " + msByte + " lo: " + lsByte);
-			int concat = ((msByte << 8) | lsByte); // 16 bit scratchpad register
-													// value
-
-			concat = concat & 0xffff;
-			if ((concat & SIGNBITMASK) == SIGNBITMASK) {
-				// negative temp
-				concat = ~concat + 1;// (concat ^ 0xffff) + 1;
-				signchr = '-';
-			}
-			int databits = DATABITSMASK & concat;
-
-			float temp = SENSOR_RESOLUTION * databits;
-			// System.out.printf("temp is: %f\n",temp);
+			int raw = ((msByte << 8) | lsByte) & dataMask;
 
-			String tempstr = signchr + Float.toString(temp);
+			String tempstr = formatTemp(raw);
 			Log.d(TAG, "converted temp value: " + tempstr);
 			tempCSVBuff.append(tempstr);
 			tempCSVBuff.append(',');
 		}
 		return tempCSVBuff.toString();
 	}
+
+	/**
+	 * Sign extends a 12 bit scratchpad value, giving the temperature in
+	 * 1/16 degrees C.
+	 */
+	static int toSixteenths(int raw) {
+		return (raw << 20) >> 20;
+	}
+
+	/**
+	 * Formats a reading the way the SAMPLE string has always been reported:
+	 * an explicit sign followed by the magnitude.
+	 */
+	static String formatTemp(int raw) {
+		float temp = CELSIUS_TABLE[raw];
+		if (temp < 0) {
+			return "-" + Float.toString(-temp);
+		}
+		return "+" + Float.toString(temp);
+	}
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.usb.temperature;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Round trips temperature and force shaped series through SeriesCodec and
+ * reports the encoded size and the encode and decode time per sample. The
+ * ForceDriver1Axis copy of SeriesCodec is the same code. Fails if any
+ * series does not decode back to what was encoded.
+ *
+ * Bundles only work on a device, so the size they are compared with is
+ * worked out from the Parcel layout of a Bundle: a header, then for each
+ * entry the key as a UTF-16 string, a type tag and the value, padded to 4
+ * bytes. The keys are the ones of the per sample bundles the series replace.
+ *
+ * SeriesCodec needs nothing from Android, from the project directory:
+ *
+ *   javac -d /tmp/seriescodec src/org/opendatakit/sensors/drivers/usb/temperature/SeriesCodec.java \
+ *       test/org/opendatakit/sensors/drivers/usb/temperature/SeriesCodecCheck.java
+ *   java -cp /tmp/seriescodec org.opendatakit.sensors.drivers.usb.temperature.SeriesCodecCheck
+ */
+public class SeriesCodecCheck {
+
+	private static final int NUM_SAMPLES = 100000;
+	private static final int NUM_RUNS = 20;
+
+	// the force bridge stamps a packet, not each sample
+	private static final int FORCE_SAMPLES_PER_PACKET = 32;
+
+	// length, magic and entry count
+	private static final int BUNDLE_HEADER = 12;
+	private static final int TYPE_TAG = 4;
+
+	public static void main(String[] args) {
+		// fixed seed so every run measures the same series
+		Random random = new Random(36);
+
+		// one sample a second drifting by a sixteenth of a degree at most
+		long[] tempTimes = new long[NUM_SAMPLES];
+		int[] tempValues = new int[NUM_SAMPLES];
+		int sixteenths = 22 * 16;
+		for (int i = 0; i < NUM_SAMPLES; i++) {
+			sixteenths += random.nextInt(3) - 1;
+			tempTimes[i] = i * 1000L;
+			tempValues[i] = sixteenths;
+		}
+		int tempBundle = BUNDLE_HEADER + stringEntry("msgtype", "report")
+				+ longEntry("series-timestamp") + intEntry("channel")
+				+ intEntry("sample_sixteenths") + intEntry("raw_hi") + intEntry("raw_low");
+		check("temperature", tempTimes, tempValues, tempBundle);
+
+		// 10 bit readings with some noise
+		long[] forceTimes = new long[NUM_SAMPLES];
+		int[] forceValues = new int[NUM_SAMPLES];
+		int force = 512;
+		for (int i = 0; i < NUM_SAMPLES; i++) {
+			force = Math.max(0, Math.min(1023, force + random.nextInt(9) - 4));
+			forceTimes[i] = (i / FORCE_SAMPLES_PER_PACKET) * 100L;
+			forceValues[i] = force;
+		}
+		int forceBundle = BUNDLE_HEADER + intEntry("force") + longEntry("series-timestamp");
+		check("force", forceTimes, forceValues, forceBundle);
+
+		// deltas that only fit in the widest varints
+		long[] edgeTimes = { Long.MAX_VALUE / 2, 0, -5, Long.MIN_VALUE / 2 };
+		int[] edgeValues = { Integer.MIN_VALUE, Integer.MAX_VALUE, 0, -1 };
+		SeriesCodec.Encoder encoder = new SeriesCodec.Encoder();
+		for (int i = 0; i < edgeTimes.length; i++) {
+			encoder.add(edgeTimes[i], edgeValues[i]);
+		}
+		roundTrip("edge values", encoder.toByteArray(), edgeTimes, edgeValues);
+		System.out.println("edge values OK");
+		System.out.println("OK");
+	}
+
+	private static void check(String name, long[] times, int[] values, int bundleBytes) {
+		byte[] encoded = null;
+		long[] decodedTimes = new long[times.length];
+		int[] decodedValues = new int[values.length];
+		long encodeNanos = Long.MAX_VALUE;
+		long decodeNanos = Long.MAX_VALUE;
+		for (int run = 0; run < NUM_RUNS; run++) {
+			long start = System.nanoTime();
+			SeriesCodec.Encoder encoder = new SeriesCodec.Encoder();
+			for (int i = 0; i < times.length; i++) {
+				encoder.add(times[i], values[i]);
+			}
+			encoded = encoder.toByteArray();
+			encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			SeriesCodec.decode(encoded, decodedTimes, decodedValues);
+			decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+		}
+		roundTrip(name, encoded, times, values);
+
+		System.out.println(name + ": " + perSample(encoded.length) + " bytes/sample encoded, about "
+				+ bundleBytes + " bytes/sample as bundles; encode " + perSample(encodeNanos)
+				+ " ns/sample, decode " + perSample(decodeNanos) + " ns/sample");
+	}
+
+	private static void roundTrip(String name, byte[] encoded, long[] times, int[] values) {
+		long[] decodedTimes = new long[times.length];
+		int[] decodedValues = new int[values.length];
+		int count = SeriesCodec.decode(encoded, decodedTimes, decodedValues);
+		if (count != times.length || SeriesCodec.count(encoded) != times.length
+				|| !Arrays.equals(decodedTimes, times) || !Arrays.equals(decodedValues, values)) {
+			System.out.println("FAILED: " + name + " did not decode to the encoded series");
+			System.exit(1);
+		}
+	}
+
+	private static int stringSize(String s) {
+		// length, then the chars and a terminating 0 as UTF-16, padded to 4
+		return 4 + ((s.length() + 1) * 2 + 3) / 4 * 4;
+	}
+
+	private static int stringEntry(String key, String value) {
+		return stringSize(key) + TYPE_TAG + stringSize(value);
+	}
+
+	private static int intEntry(String key) {
+		return stringSize(key) + TYPE_TAG + 4;
+	}
+
+	private static int longEntry(String key) {
+		return stringSize(key) + TYPE_TAG + 8;
+	}
+
+	private static String perSample(long total) {
+		return String.valueOf(Math.round(100.0 * total / NUM_SAMPLES) / 100.0);
+	}
+}
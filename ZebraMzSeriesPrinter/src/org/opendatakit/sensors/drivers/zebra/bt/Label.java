@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.zebra.bt;
+
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * The content of one label in a print request. Field values are kept in
+ * LabelTemplate slot order so consecutive labels can be compared field by
+ * field when a batch is folded into as few CPCL jobs as possible.
+ */
+class Label {
+
+	private static final String TAG = "PrinterDriver";
+
+	static final String LABEL_HEIGHT = "LABEL-HEIGHT";
+	static final String BARCODE = "BARCODE";
+	static final String QRCODE = "QRCODE";
+	static final String QRCODE_ECC = "QRCODE-ECC";
+	static final String TEXT_STRINGS = "TEXT-STRINGS";
+	static final String COPIES = "COPIES";
+	static final String LABELS = "LABELS";
+
+	// CPCL only looks at the last 20 characters for the number to step, keep
+	// to 18 digits so the value fits in a long
+	private static final int MAX_SERIAL_DIGITS = 18;
+
+	final int labelHeight;
+	final boolean hasBarcode;
+	final QrCode qrcode;
+	final int numStrings;
+	final String[] fields;
+	final int copies;
+
+	// 1 bit bitmap printed under the text, null for none
+	final byte[] graphic;
+	final int graphicWidth;
+	final String graphicKey;
+
+	private Label(int labelHeight, String barcode, String qrcode, char qrEcc, String[] strings,
+			int copies, byte[] graphic, int graphicWidth) {
+		this.labelHeight = labelHeight;
+		this.hasBarcode = barcode != null && barcode.length() > 0;
+		this.qrcode = (qrcode != null && qrcode.length() > 0) ? QrCode.encode(qrcode, qrEcc) : null;
+		if (qrcode != null && qrcode.length() > 0 && this.qrcode == null) {
+			Log.w(TAG, "ignoring QR code, " + qrcode.length() + " characters don't fit at level " + qrEcc);
+		}
+		this.numStrings = (strings == null) ? 0 : strings.length;
+		this.copies = copies;
+
+		if (LabelGraphic.isValid(graphic, graphicWidth)) {
+			this.graphic = graphic;
+			this.graphicWidth = graphicWidth;
+			this.graphicKey = LabelGraphic.key(graphic, graphicWidth);
+		} else {
+			if (graphic != null) {
+				Log.w(TAG, "ignoring graphic, " + graphic.length + " bytes is not whole rows of "
+						+ graphicWidth + " dots");
+			}
+			this.graphic = null;
+			this.graphicWidth = 0;
+			this.graphicKey = null;
+		}
+
+		fields = new String[(hasBarcode ? 1 : 0) + (this.qrcode != null ? 1 : 0) + numStrings];
+		int slot = 0;
+		if (hasBarcode) {
+			fields[slot++] = barcode;
+		}
+		if (this.qrcode != null) {
+			fields[slot++] = this.qrcode.getDataLine();
+		}
+		for (int i = 0; i < numStrings; i++) {
+			fields[slot++] = (strings[i] == null) ? "" : strings[i];
+		}
+	}
+
+	/**
+	 * @param defaultHeight label height used when the bundle has none
+	 */
+	static Label fromBundle(Bundle data, int defaultHeight) {
+		int labelHeight = data.containsKey(LABEL_HEIGHT) ? data.getInt(LABEL_HEIGHT) : defaultHeight;
+		int copies = data.containsKey(COPIES) ? data.getInt(COPIES) : 1;
+		String ecc = data.getString(QRCODE_ECC);
+		char qrEcc = (ecc != null && ecc.length() == 1) ? ecc.charAt(0) : QrCode.DEFAULT_ECC;
+		return new Label(labelHeight, data.getString(BARCODE), data.getString(QRCODE), qrEcc,
+				data.getStringArray(TEXT_STRINGS), copies, data.getByteArray(LabelGraphic.GRAPHIC),
+				data.getInt(LabelGraphic.GRAPHIC_WIDTH));
+	}
+
+	boolean isEmpty() {
+		return (fields.length == 0 && graphic == null) || copies <= 0;
+	}
+
+	int getQrModules() {
+		return (qrcode == null) ? 0 : qrcode.getModules();
+	}
+
+	int getGraphicHeight() {
+		return (graphic == null) ? 0 : graphic.length / LabelGraphic.rowBytes(graphicWidth);
+	}
+
+	boolean sameLayout(Label other) {
+		return labelHeight == other.labelHeight && hasBarcode == other.hasBarcode
+				&& numStrings == other.numStrings && getQrModules() == other.getQrModules()
+				&& (graphicKey == null ? other.graphicKey == null : graphicKey.equals(other.graphicKey));
+	}
+
+	/**
+	 * @return next minus prev when the two strings are the same apart from a
+	 *         trailing number of the same width that the printer can step
+	 *         from one to the other, 0 if they are equal or cannot be
+	 *         stepped
+	 */
+	static long serialStep(String prev, String next) {
+		int len = prev.length();
+		if (len != next.length() || prev.equals(next)) {
+			return 0;
+		}
+
+		int start = len;
+		while (start > 0 && len - start < MAX_SERIAL_DIGITS
+				&& Character.isDigit(prev.charAt(start - 1))
+				&& Character.isDigit(next.charAt(start - 1))) {
+			start--;
+		}
+		if (start == len || !prev.regionMatches(0, next, 0, start)) {
+			return 0;
+		}
+
+		try {
+			return Long.parseLong(next.substring(start)) - Long.parseLong(prev.substring(start));
+		} catch (NumberFormatException e) {
+			// non-ASCII digits
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.zebra.bt;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A 1 bit raster graphic encoded once for printing. The bitmap is given as
+ * rows of packed bits, most significant bit first, 1 for a black dot, each
+ * row padded to a whole byte.
+ *
+ * Two binary encodings are built and the shorter is kept: CPCL CG, the raw
+ * bits, and a PCX image, which is run length encoded per row. PCX wins by a
+ * wide margin on logos and signatures, CG on noisy images. Both are half
+ * the size of the hex EG form.
+ */
+class LabelGraphic {
+
+	static final String GRAPHIC = "GRAPHIC";
+	static final String GRAPHIC_WIDTH = "GRAPHIC-WIDTH";
+
+	private static final int PCX_HEADER_SIZE = 128;
+	private static final int PCX_MAX_RUN = 63;
+	private static final int PRINTER_DPI = 200;
+
+	private final int height;
+	private final boolean pcx;
+	private final String command;
+	private final byte[] data;
+
+	private LabelGraphic(int height, boolean pcx, String command, byte[] data) {
+		this.height = height;
+		this.pcx = pcx;
+		this.command = command;
+		this.data = data;
+	}
+
+	/**
+	 * @return bytes per row of a bitmap width dots wide
+	 */
+	static int rowBytes(int width) {
+		return (width + 7) / 8;
+	}
+
+	/**
+	 * @return true if bitmap holds whole rows of a graphic width dots wide
+	 */
+	static boolean isValid(byte[] bitmap, int width) {
+		return bitmap != null && width > 0 && bitmap.length > 0
+				&& bitmap.length % rowBytes(width) == 0;
+	}
+
+	/**
+	 * @return a key identifying the graphic by its content
+	 */
+	static String key(byte[] bitmap, int width) {
+		StringBuilder key = new StringBuilder();
+		key.append(width).append(':');
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(bitmap);
+			for (byte b : digest) {
+				key.append(Character.forDigit((b >> 4) & 0x0F, 16));
+				key.append(Character.forDigit(b & 0x0F, 16));
+			}
+		} catch (NoSuchAlgorithmException e) {
+			// every Android release has SHA-1; fall back to the bytes themselves
+			for (byte b : bitmap) {
+				key.append((char) (b & 0xff));
+			}
+		}
+		return key.toString();
+	}
+
+	static LabelGraphic encode(byte[] bitmap, int width) {
+		int rowBytes = rowBytes(width);
+		int height = bitmap.length / rowBytes;
+
+		byte[] pcxData = encodePcx(bitmap, width, height);
+		if (pcxData.length < bitmap.length) {
+			return new LabelGraphic(height, true, "PCX", pcxData);
+		}
+		return new LabelGraphic(height, false, "CG " + rowBytes + " " + height, bitmap.clone());
+	}
+
+	int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return number of bytes sent for the image itself
+	 */
+	int getEncodedSize() {
+		return data.length;
+	}
+
+	boolean isPcx() {
+		return pcx;
+	}
+
+	/**
+	 * Appends the command printing the graphic with its top left corner at
+	 * x, y.
+	 */
+	void writeTo(ByteArrayOutputStream out, int x, int y) {
+		StringBuilder cmd = new StringBuilder(command);
+		cmd.append(' ').append(x).append(' ').append(y);
+		// PCX data starts on the line after the command, CG data on the same line
+		cmd.append(pcx ? "\r\n" : " ");
+		byte[] cmdBytes = cmd.toString().getBytes(LabelTemplate.UTF8);
+		out.write(cmdBytes, 0, cmdBytes.length);
+		out.write(data, 0, data.length);
+		out.write('\r');
+		out.write('\n');
+	}
+
+	/**
+	 * Builds a 2 colour PCX image. PCX rows must be an even number of bytes
+	 * and use 0 for black, so rows are inverted and padded with white.
+	 */
+	private static byte[] encodePcx(byte[] bitmap, int width, int height) {
+		int rowBytes = rowBytes(width);
+		int pcxRowBytes = rowBytes + (rowBytes & 1);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(PCX_HEADER_SIZE + bitmap.length / 4);
+		byte[] header = new byte[PCX_HEADER_SIZE];
+		header[0] = 0x0A; // manufacturer
+		header[1] = 5; // version
+		header[2] = 1; // run length encoding
+		header[3] = 1; // bits per pixel
+		putShort(header, 8, width - 1); // xmax
+		putShort(header, 10, height - 1); // ymax
+		putShort(header, 12, PRINTER_DPI);
+		putShort(header, 14, PRINTER_DPI);
+		// palette entry 0 black, entry 1 white
+		header[19] = (byte) 0xFF;
+		header[20] = (byte) 0xFF;
+		header[21] = (byte) 0xFF;
+		header[65] = 1; // planes
+		putShort(header, 66, pcxRowBytes);
+		putShort(header, 68, 1); // monochrome palette
+		out.write(header, 0, header.length);
+
+		for (int row = 0; row < height; row++) {
+			int base = row * rowBytes;
+			int i = 0;
+			while (i < pcxRowBytes) {
+				int value = pcxByte(bitmap, base, rowBytes, i);
+				int run = 1;
+				while (i + run < pcxRowBytes && run < PCX_MAX_RUN
+						&& pcxByte(bitmap, base, rowBytes, i + run) == value) {
+					run++;
+				}
+				// runs never cross rows, and a single byte only needs a count
+				// when it could be mistaken for one
+				if (run > 1 || (value & 0xC0) == 0xC0) {
+					out.write(0xC0 | run);
+				}
+				out.write(value);
+				i += run;
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static int pcxByte(byte[] bitmap, int base, int rowBytes, int i) {
+		return (i < rowBytes) ? ~bitmap[base + i] & 0xff : 0xff;
+	}
+
+	private static void putShort(byte[] buf, int offset, int value) {
+		buf[offset] = (byte) value;
+		buf[offset + 1] = (byte) (value >> 8);
+	}
+}
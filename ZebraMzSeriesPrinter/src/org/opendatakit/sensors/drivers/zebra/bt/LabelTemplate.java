@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.zebra.bt;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A CPCL label layout compiled once. The fixed parts of the job (header,
+ * field commands and their positions) are kept as UTF-8 byte fragments with
+ * a slot for each variable field between them, so a label is printed by
+ * encoding only the field values and copying bytes.
+ *
+ * Slots are filled in layout order: the barcode if there is one, the QR
+ * code data line (see QrCode) if there is one, then one slot per text line. A graphic, if the
+ * layout has one, goes under the text.
+ *
+ * A label can be printed as several copies in one job. Barcode and text
+ * slots can also be given a CPCL COUNT step, which makes the printer add
+ * the step to the trailing number in the field on each copy, so a run of
+ * serially numbered labels is sent as a single label.
+ */
+class LabelTemplate {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final int BARCODE_HEIGHT_DPI = 50;
+	static final int TEXT_HEIGHT_DPI = 25;
+	static final int QRCODE_MODULE_DPI = 6;
+	private static final int TOP_MARGIN_DPI = 5;
+
+	// limits from the CPCL manual
+	static final int MAX_COPIES = 1024;
+	static final int MAX_COUNTED_FIELDS = 3;
+	static final int MAX_COUNT_STEP = 65535;
+
+	private static final byte[] LINE_END = "\r\n".getBytes(UTF8);
+	private static final byte[] COUNT = "COUNT ".getBytes(UTF8);
+
+	private final int labelHeight;
+	private final int graphicY;
+	private final int qrSlot;
+	private final byte[] header;
+	private final byte[] lead;
+	private final byte[][] prefixes;
+	private final byte[][] suffixes;
+	private final byte[] trailer;
+
+	private LabelTemplate(int labelHeight, int graphicY, int qrSlot, byte[] header, byte[] lead,
+			byte[][] prefixes, byte[][] suffixes, byte[] trailer) {
+		this.labelHeight = labelHeight;
+		this.graphicY = graphicY;
+		this.qrSlot = qrSlot;
+		this.header = header;
+		this.lead = lead;
+		this.prefixes = prefixes;
+		this.suffixes = suffixes;
+		this.trailer = trailer;
+	}
+
+	/**
+	 * @return the cache key for a layout, matching the arguments of compile
+	 */
+	static String key(int labelHeight, boolean barcode, int qrModules, int numStrings, int graphicHeight) {
+		return labelHeight + (barcode ? "|B|" : "|-|") + qrModules + "|" + numStrings + "|" + graphicHeight;
+	}
+
+	/**
+	 * @param labelHeight height in dots, 0 to fit the contents
+	 * @param barcode     true for a code 128 barcode at the top
+	 * @param qrModules   QR code width in modules, 0 for no QR code
+	 * @param numStrings  number of text lines under the codes
+	 * @param graphicHeight height in dots of the graphic under the text, 0
+	 *                    for no graphic
+	 */
+	static LabelTemplate compile(int labelHeight, boolean barcode, int qrModules, int numStrings,
+			int graphicHeight) {
+		int qrCodeHeight = qrModules * QRCODE_MODULE_DPI + TEXT_HEIGHT_DPI;
+
+		if (labelHeight == 0) {
+			labelHeight = TOP_MARGIN_DPI;
+			if (barcode) {
+				labelHeight += BARCODE_HEIGHT_DPI;
+			}
+			if (qrModules > 0) {
+				labelHeight += qrCodeHeight;
+			}
+			labelHeight += numStrings * TEXT_HEIGHT_DPI;
+			labelHeight += graphicHeight;
+		}
+
+		int numSlots = (barcode ? 1 : 0) + (qrModules > 0 ? 1 : 0) + numStrings;
+		byte[][] prefixes = new byte[numSlots][];
+		byte[][] suffixes = new byte[numSlots][];
+		int slot = 0;
+		int qrSlot = -1;
+
+		byte[] header = ("! 0 200 200 " + labelHeight + " ").getBytes(UTF8);
+		byte[] lead = "\r\n ON-FEED IGNORE\r\n ENCODING UTF-8\r\n".getBytes(UTF8);
+		StringBuilder fixed = new StringBuilder();
+
+		int yValue = TOP_MARGIN_DPI;
+		if (barcode) {
+			fixed.append("BARCODE 128 1 1 45 0 ").append(yValue).append(" ");
+			prefixes[slot] = fixed.toString().getBytes(UTF8);
+			suffixes[slot++] = LINE_END;
+			fixed.setLength(0);
+			yValue += BARCODE_HEIGHT_DPI;
+		}
+
+		if (qrModules > 0) {
+			fixed.append("BARCODE QR 0 ").append(yValue).append(" M 2 U ").append(QRCODE_MODULE_DPI).append("\r\n");
+			prefixes[slot] = fixed.toString().getBytes(UTF8);
+			qrSlot = slot;
+			suffixes[slot++] = "\r\nENDQR\r\n".getBytes(UTF8);
+			fixed.setLength(0);
+			yValue += qrCodeHeight;
+		}
+
+		byte[] textEnd = " \r\n".getBytes(UTF8);
+		for (int i = 0; i < numStrings; i++) {
+			fixed.append("TEXT 7 0 0 ").append(yValue).append(" ");
+			prefixes[slot] = fixed.toString().getBytes(UTF8);
+			suffixes[slot++] = textEnd;
+			fixed.setLength(0);
+			yValue += TEXT_HEIGHT_DPI;
+		}
+
+		byte[] trailer = "PRINT \r\n".getBytes(UTF8);
+
+		return new LabelTemplate(labelHeight, yValue, qrSlot, header, lead, prefixes, suffixes, trailer);
+	}
+
+	int getLabelHeight() {
+		return labelHeight;
+	}
+
+	int getNumSlots() {
+		return prefixes.length;
+	}
+
+	/**
+	 * @return true if the printer can step a number in the slot between copies
+	 */
+	boolean isCountable(int slot) {
+		return slot != qrSlot;
+	}
+
+	/**
+	 * Appends the label to out with the given field values in the slots.
+	 *
+	 * @param counts per slot COUNT step applied between copies, 0 or a null
+	 *               array for fields that stay the same
+	 * @param copies number of labels printed from this job
+	 * @param graphic graphic printed under the text, null if the layout has
+	 *                none
+	 */
+	void render(byte[][] fields, int[] counts, int copies, LabelGraphic graphic,
+			ByteArrayOutputStream out) {
+		out.write(header, 0, header.length);
+		byte[] qty = Integer.toString(copies).getBytes(UTF8);
+		out.write(qty, 0, qty.length);
+		out.write(lead, 0, lead.length);
+		for (int i = 0; i < fields.length; i++) {
+			out.write(prefixes[i], 0, prefixes[i].length);
+			out.write(fields[i], 0, fields[i].length);
+			if (counts != null && counts[i] != 0) {
+				// the printer steps the number at the very end of the field
+				out.write(LINE_END, 0, LINE_END.length);
+				out.write(COUNT, 0, COUNT.length);
+				byte[] step = Integer.toString(counts[i]).getBytes(UTF8);
+				out.write(step, 0, step.length);
+				out.write(LINE_END, 0, LINE_END.length);
+			} else {
+				out.write(suffixes[i], 0, suffixes[i].length);
+			}
+		}
+		if (graphic != null) {
+			graphic.writeTo(out, 0, graphicY);
+		}
+		out.write(trailer, 0, trailer.length);
+	}
+}
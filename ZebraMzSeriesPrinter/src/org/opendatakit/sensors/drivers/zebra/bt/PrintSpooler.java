@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.zebra.bt;
+
+import java.util.LinkedList;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Queue of print jobs drained in order by a single worker thread. The
+ * printer is connected on demand when a job reaches the head of the queue;
+ * a job that fails to connect or send stays at the head and is retried with
+ * exponential backoff, so later labels never print ahead of it. A job is
+ * dropped only after MAX_ATTEMPTS failures.
+ *
+ * Before each send the printer is asked for its status. While it reports
+ * that it can't print (paper out, head open) the job waits at the head of
+ * the queue without using up attempts. A printer that doesn't answer the
+ * inquiry is sent the job anyway.
+ *
+ * The spooler is not tied to an activity: jobs stay queued while no
+ * PrinterLink is attached (for example while the activity is recreated), or
+ * while the attached link has no printer to talk to, and are sent once a
+ * link with a printer is attached again.
+ */
+class PrintSpooler {
+
+	private static final String TAG = "PrintSpooler";
+
+	static final int MAX_ATTEMPTS = 5;
+	private static final long CONNECT_TIMEOUT_MS = 10000;
+	private static final long CONNECT_POLL_MS = 250;
+	private static final long BASE_BACKOFF_MS = 1000;
+	private static final long MAX_BACKOFF_MS = 30000;
+	private static final long NOT_READY_POLL_MS = 2000;
+
+	private static final int SENT = 0;
+	private static final int SEND_FAILED = 1;
+	private static final int NOT_READY = 2;
+	private static final int NO_PRINTER = 3;
+
+	/**
+	 * Access to the printer through the sensor service. Called on the worker
+	 * thread.
+	 */
+	interface PrinterLink {
+		/**
+		 * @return false while no printer has been chosen, jobs then wait
+		 *         without using up attempts
+		 */
+		boolean hasPrinter();
+
+		void connect() throws RemoteException;
+
+		boolean isConnected() throws RemoteException;
+
+		/**
+		 * @return the PrinterDriver status record, or null if the printer did
+		 *         not answer
+		 */
+		Bundle queryStatus() throws RemoteException, InterruptedException;
+
+		void send(Bundle data) throws RemoteException;
+	}
+
+	/**
+	 * Told about every status change of a job. Called on the worker thread.
+	 */
+	interface JobListener {
+		void onJobStatus(PrintJob job);
+	}
+
+	enum Status {
+		QUEUED, CONNECTING, WAITING, SENDING, RETRYING, PRINTED, FAILED
+	}
+
+	static class PrintJob {
+		final int id;
+		final Bundle data;
+		private volatile Status status = Status.QUEUED;
+		private volatile int attempts = 0;
+		private volatile String error = null;
+
+		private PrintJob(int id, Bundle data) {
+			this.id = id;
+			this.data = data;
+		}
+
+		Status getStatus() {
+			return status;
+		}
+
+		int getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * @return reason for the last failed attempt, or null
+		 */
+		String getError() {
+			return error;
+		}
+	}
+
+	private final Object lock = new Object();
+	private final LinkedList<PrintJob> queue = new LinkedList<PrintJob>();
+	private PrinterLink link = null;
+	private JobListener listener = null;
+	private Thread worker = null;
+	private int nextId = 1;
+
+	/**
+	 * Attach the printer and listener the worker uses, or detach them with
+	 * null. Queued jobs wait while no printer is attached. Attaching the same
+	 * link again wakes the worker, e.g. once it has a printer.
+	 */
+	void attach(PrinterLink link, JobListener listener) {
+		synchronized (lock) {
+			this.link = link;
+			this.listener = listener;
+			if (link != null && worker == null) {
+				worker = new Thread(new Runnable() {
+					public void run() {
+						drain();
+					}
+				}, "Printer Spooler Thread");
+				worker.start();
+			}
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Queue a copy of data for printing.
+	 */
+	PrintJob submit(Bundle data) {
+		PrintJob job;
+		synchronized (lock) {
+			job = new PrintJob(nextId++, new Bundle(data));
+			queue.addLast(job);
+			lock.notifyAll();
+		}
+		Log.d(TAG,"queued job " + job.id);
+		return job;
+	}
+
+	int getQueueLength() {
+		synchronized (lock) {
+			return queue.size();
+		}
+	}
+
+	private void drain() {
+		try {
+			while (true) {
+				PrintJob job;
+				PrinterLink printer;
+				synchronized (lock) {
+					while (queue.isEmpty() || link == null || !link.hasPrinter()) {
+						lock.wait();
+					}
+					job = queue.getFirst();
+					printer = link;
+				}
+
+				int result = print(printer, job);
+				if (result == SENT) {
+					job.error = null;
+					finish(job, Status.PRINTED);
+					continue;
+				}
+
+				if (result == NO_PRINTER) {
+					// the printer went away under the job, wait for another
+					setStatus(job, Status.QUEUED);
+					continue;
+				}
+
+				if (result == NOT_READY) {
+					setStatus(job, Status.WAITING);
+					pause(NOT_READY_POLL_MS);
+					continue;
+				}
+
+				if (job.attempts >= MAX_ATTEMPTS) {
+					Log.e(TAG,"giving up on job " + job.id + ": " + job.error);
+					finish(job, Status.FAILED);
+					continue;
+				}
+
+				long backoff = Math.min(BASE_BACKOFF_MS << (job.attempts - 1), MAX_BACKOFF_MS);
+				Log.d(TAG,"job " + job.id + " failed, retrying in " + backoff + " ms");
+				setStatus(job, Status.RETRYING);
+				pause(backoff);
+			}
+		} catch (InterruptedException e) {
+			Log.d(TAG,"spooler interrupted");
+		}
+	}
+
+	/**
+	 * Waits for delay ms, or until a different printer is attached.
+	 */
+	private void pause(long delay) throws InterruptedException {
+		synchronized (lock) {
+			PrinterLink waitingOn = link;
+			long until = System.currentTimeMillis() + delay;
+			long left = delay;
+			while (left > 0 && link == waitingOn) {
+				lock.wait(left);
+				left = until - System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	 * @return SENT if the job was handed to the printer, NOT_READY if the
+	 *         printer reported it can't print, NO_PRINTER if the link lost
+	 *         its printer, SEND_FAILED otherwise
+	 */
+	private int print(PrinterLink printer, PrintJob job) throws InterruptedException {
+		if (!printer.hasPrinter()) {
+			return NO_PRINTER;
+		}
+		job.attempts++;
+		try {
+			if (!printer.isConnected()) {
+				setStatus(job, Status.CONNECTING);
+				printer.connect();
+				long waited = 0;
+				while (!printer.isConnected()) {
+					if (waited >= CONNECT_TIMEOUT_MS) {
+						job.error = "printer did not connect";
+						return SEND_FAILED;
+					}
+					Thread.sleep(CONNECT_POLL_MS);
+					waited += CONNECT_POLL_MS;
+				}
+			}
+
+			Bundle status = printer.queryStatus();
+			if (status != null && !status.getBoolean(PrinterDriver.READY, true)) {
+				// waiting on the user doesn't count as a failed attempt
+				job.attempts--;
+				job.error = status.getBoolean(PrinterDriver.PAPER_OUT) ? "paper out" : "head open";
+				return NOT_READY;
+			}
+
+			setStatus(job, Status.SENDING);
+			printer.send(job.data);
+			return SENT;
+		} catch (RemoteException e) {
+			job.error = e.toString();
+		} catch (RuntimeException e) {
+			// the service binding can go away under us
+			job.error = e.toString();
+		}
+		return SEND_FAILED;
+	}
+
+	private void finish(PrintJob job, Status status) {
+		synchronized (lock) {
+			queue.remove(job);
+		}
+		setStatus(job, status);
+	}
+
+	private void setStatus(PrintJob job, Status status) {
+		if (job.status == status) {
+			return;
+		}
+		job.status = status;
+		JobListener current;
+		synchronized (lock) {
+			current = listener;
+		}
+		if (current != null) {
+			current.onJobStatus(job);
+		}
+	}
+}
@@ -23,24 +23,78 @@ package org.opendatakit.sensors.drivers.zebra.bt;
  *
  */
 
-import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.opendatakit.sensors.DataSeries;
 import org.opendatakit.sensors.SensorDataPacket;
 import org.opendatakit.sensors.SensorDataParseResponse;
 import org.opendatakit.sensors.drivers.AbstractDriverBaseV2;
 
 import android.os.Bundle;
+import android.os.Parcelable;
 import android.util.Log;
 
 public class PrinterDriver extends AbstractDriverBaseV2  {
 
 	public static final String TAG = "PrinterDriver";
 
-	private static final int BARCODE_HEIGHT_DPI = 50;
-	private static final int TEXT_HEIGHT_DPI = 25;
-	private static final int QRCODE_MODULE_DPI = 6;
+	// set in a bundle to send a status inquiry, after any labels in it
+	public static final String STATUS_QUERY = "STATUS-QUERY";
+
+	// the printer's reply is reported as a status record
+	public static final String MSG_TYPE_STATUS = "status";
+	public static final String READY = "ready";
+	public static final String BUSY = "busy";
+	public static final String PAPER_OUT = "paper-out";
+	public static final String HEAD_OPEN = "head-open";
+	public static final String BATTERY_LOW = "battery-low";
+
+	// CPCL status inquiry, answered with a single status byte
+	private static final byte[] STATUS_INQUIRY = { 0x1B, 0x68 };
+	private static final int STATUS_BUSY = 0x01;
+	private static final int STATUS_PAPER_OUT = 0x02;
+	private static final int STATUS_HEAD_OPEN = 0x04;
+	private static final int STATUS_BATTERY_LOW = 0x08;
+	private static final int STATUS_UNUSED_BITS = 0xF0;
+	// a printer that never answers must not leave us taking every control
+	// byte it sends later as a status reply
+	private static final int MAX_PENDING_QUERIES = 4;
+
+	// layouts are compiled once and reused, least recently used dropped first
+	private static final int MAX_CACHED_TEMPLATES = 32;
+
+	// encoded graphics by content, so a repeated logo is only encoded once
+	private static final int MAX_CACHED_GRAPHICS = 16;
+
+	private static final int[] NO_STEPS = new int[0];
+
+	private final Map<String, LabelTemplate> templates = new LinkedHashMap<String, LabelTemplate>(
+			MAX_CACHED_TEMPLATES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, LabelTemplate> eldest) {
+			return size() > MAX_CACHED_TEMPLATES;
+		}
+	};
+
+	private final Map<String, LabelGraphic> graphics = new LinkedHashMap<String, LabelGraphic>(
+			MAX_CACHED_GRAPHICS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, LabelGraphic> eldest) {
+			return size() > MAX_CACHED_GRAPHICS;
+		}
+	};
+
+	private final AtomicInteger pendingQueries = new AtomicInteger(0);
 
 	public PrinterDriver() {
 		Log.d(TAG," constructed.");
@@ -50,6 +104,30 @@ public class PrinterDriver extends AbstractDriverBaseV2  {
 	public SensorDataParseResponse getSensorData(long maxNumReadings, List<SensorDataPacket> rawData, byte[] remainingData) {
 		List<Bundle> allData = new ArrayList<Bundle>();
 
+		// status replies are single bytes, so nothing is carried between calls
+		// other than the number of inquiries still unanswered
+		int status = -1;
+		long statusTime = 0;
+		for (SensorDataPacket pkt : rawData) {
+			byte[] payload = pkt.getPayload();
+			if (payload == null) {
+				continue;
+			}
+			for (byte b : payload) {
+				if ((b & STATUS_UNUSED_BITS) != 0 || pendingQueries.get() == 0) {
+					continue;
+				}
+				pendingQueries.decrementAndGet();
+				status = b & 0xff;
+				statusTime = pkt.getTime();
+			}
+		}
+
+		// only the latest status matters to the caller
+		if (status >= 0) {
+			allData.add(createStatus(status, statusTime));
+		}
+
 		return new SensorDataParseResponse(allData, null);
 	}
 
@@ -57,91 +135,186 @@ public class PrinterDriver extends AbstractDriverBaseV2  {
 	public byte[] sendDataToSensor(Bundle dataToFormat) {
 		Log.d(TAG,"sendDataToSensor entered");
 
-		int labelHeight = dataToFormat.getInt("LABEL-HEIGHT");
-		String barcode = dataToFormat.getString("BARCODE");
-		String qrcode = dataToFormat.getString("QRCODE");
-		String[] strings = dataToFormat.getStringArray("TEXT-STRINGS");
+		boolean statusQuery = dataToFormat.getBoolean(STATUS_QUERY);
+		int defaultHeight = dataToFormat.getInt(Label.LABEL_HEIGHT);
+		List<Label> labels = new ArrayList<Label>();
+
+		Parcelable[] batch = dataToFormat.getParcelableArray(Label.LABELS);
+		if (batch != null) {
+			for (Parcelable item : batch) {
+				if (item instanceof Bundle) {
+					Label label = Label.fromBundle((Bundle) item, defaultHeight);
+					if (!label.isEmpty()) {
+						labels.add(label);
+					}
+				}
+			}
+		} else {
+			Label label = Label.fromBundle(dataToFormat, defaultHeight);
+			if (!label.isEmpty()) {
+				labels.add(label);
+			}
+		}
 
-		if ( barcode == null && qrcode == null && strings == null || strings.length == 0 ) {
+		if (labels.isEmpty() && !statusQuery) {
 			Log.d(TAG, "No data received by printer driver");
 			return null;
 		}
 
-		int qrCodeHeight = 0;
-		if (qrcode != null && qrcode.length() > 0) {
-
-			// for Medium ECC, Alphanumeric
-			int[] capacity = {
-					 20,  38,  61,  90, 122, 154, 178, 221, 262, 311,
-					366, 419, 483, 528, 600, 656, 734, 816, 909, 970,
-					1035, 1134, 1248, 1326, 1451, 1542, 1637, 1732, 1839, 1994,
-					2113, 2238, 2369, 2506, 2632, 2780, 2894, 3054, 3220, 3391 };
-
-			// assume 20% overhead in string (conservative?)
-			int storage = qrcode.length() + (qrcode.length()/5);
-			int level;
-			for (level = 0; level < capacity.length ; ++level ) {
-				if ( capacity[level] > storage ) {
-					break;
-				}
-			}
-			int modules = 21 + 4*(level+1);
+		// a buffer per call, the service may call in from several threads
+		ByteArrayOutputStream printBuffer = new ByteArrayOutputStream(512);
+		int jobs = 0;
+		for (int next = 0; next < labels.size(); jobs++) {
+			next = appendJob(labels, next, printBuffer);
+		}
 
-			qrCodeHeight = modules*QRCODE_MODULE_DPI + TEXT_HEIGHT_DPI;
+		if (statusQuery) {
+			printBuffer.write(STATUS_INQUIRY, 0, STATUS_INQUIRY.length);
+			if (pendingQueries.incrementAndGet() > MAX_PENDING_QUERIES) {
+				pendingQueries.set(MAX_PENDING_QUERIES);
+			}
 		}
+		Log.d(TAG,"sendDataToSensor returning " + labels.size() + " labels in " + jobs + " jobs");
 
-		if(labelHeight == 0) {
+		return printBuffer.toByteArray();
+	}
 
-			labelHeight = 5;
+	private static Bundle createStatus(int status, long time) {
+		boolean paperOut = (status & STATUS_PAPER_OUT) != 0;
+		boolean headOpen = (status & STATUS_HEAD_OPEN) != 0;
 
-			if(barcode != null && barcode.length() > 0) {
-				labelHeight += BARCODE_HEIGHT_DPI;
-			}
+		Bundle statusData = new Bundle();
+		statusData.putString(DataSeries.MSG_TYPE, MSG_TYPE_STATUS);
+		statusData.putLong(DataSeries.SERIES_TIMESTAMP, time);
+		statusData.putBoolean(READY, !paperOut && !headOpen);
+		statusData.putBoolean(BUSY, (status & STATUS_BUSY) != 0);
+		statusData.putBoolean(PAPER_OUT, paperOut);
+		statusData.putBoolean(HEAD_OPEN, headOpen);
+		statusData.putBoolean(BATTERY_LOW, (status & STATUS_BATTERY_LOW) != 0);
+		return statusData;
+	}
+
+	/**
+	 * Folds the longest run of labels starting at start into one CPCL job and
+	 * appends it to out. Identical labels are printed with the copy
+	 * count, and labels whose barcode or text differ only by a number that
+	 * steps by the same amount each time are printed with COUNT.
+	 *
+	 * @return index of the first label not in the job
+	 */
+	private int appendJob(List<Label> labels, int start, ByteArrayOutputStream out) {
+		Label first = labels.get(start);
+		LabelTemplate template = templateFor(first);
+		LabelGraphic graphic = graphicFor(first);
+
+		byte[][] fields = new byte[first.fields.length][];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = first.fields[i].getBytes(LabelTemplate.UTF8);
+		}
 
-			if (qrcode != null && qrcode.length() > 0) {
-				labelHeight += qrCodeHeight;
+		// more copies than one job can print are split over several jobs
+		if (first.copies > LabelTemplate.MAX_COPIES) {
+			for (int left = first.copies; left > 0; left -= LabelTemplate.MAX_COPIES) {
+				template.render(fields, null, Math.min(left, LabelTemplate.MAX_COPIES), graphic, out);
 			}
+			return start + 1;
+		}
 
-			if (strings != null) {
-				labelHeight += strings.length * TEXT_HEIGHT_DPI;
+		int copies = first.copies;
+		int[] counts = null;
+		int end = start + 1;
+		for (; end < labels.size(); end++) {
+			Label prev = labels.get(end - 1);
+			Label next = labels.get(end);
+			if (!next.sameLayout(first)) {
+				break;
+			}
+			int[] steps = stepsBetween(prev, next, template);
+			if (steps == null) {
+				break;
 			}
 
-			Log.d(TAG,"calculated label height: " + labelHeight);
+			if (steps == NO_STEPS) {
+				if (counts != null || copies + next.copies > LabelTemplate.MAX_COPIES) {
+					break;
+				}
+				copies += next.copies;
+			} else {
+				if (prev.copies != 1 || next.copies != 1 || copies + 1 > LabelTemplate.MAX_COPIES) {
+					break;
+				}
+				if (counts == null) {
+					// a serial run can't extend a run of identical labels
+					if (end != start + 1) {
+						break;
+					}
+					counts = steps;
+				} else if (!Arrays.equals(counts, steps)) {
+					break;
+				}
+				copies++;
+			}
 		}
 
-		StringBuilder printCmd = new StringBuilder();
-		printCmd.append("! 0 200 200 " + labelHeight + " 1\r\n ON-FEED IGNORE\r\n ENCODING UTF-8\r\n");
+		template.render(fields, counts, copies, graphic, out);
+		return end;
+	}
 
-		int yValue = 5;
-		if(barcode != null && barcode.length() > 0) {
-			printCmd.append("BARCODE 128 1 1 45 0 " + yValue + " " + barcode + "\r\n");
-			yValue += BARCODE_HEIGHT_DPI;
+	/**
+	 * @return the per slot COUNT steps that turn prev into next, NO_STEPS if
+	 *         they are identical or null if next can't be printed from prev
+	 */
+	private static int[] stepsBetween(Label prev, Label next, LabelTemplate template) {
+		int[] steps = null;
+		int counted = 0;
+		for (int i = 0; i < prev.fields.length; i++) {
+			if (prev.fields[i].equals(next.fields[i])) {
+				continue;
+			}
+			long step = Label.serialStep(prev.fields[i], next.fields[i]);
+			if (step == 0 || !template.isCountable(i) || Math.abs(step) > LabelTemplate.MAX_COUNT_STEP
+					|| ++counted > LabelTemplate.MAX_COUNTED_FIELDS) {
+				return null;
+			}
+			if (steps == null) {
+				steps = new int[prev.fields.length];
+			}
+			steps[i] = (int) step;
 		}
+		return (steps == null) ? NO_STEPS : steps;
+	}
 
-		if (qrcode != null && qrcode.length() > 0) {
-			printCmd.append("BARCODE QR 0 " + yValue + " M 2 U " + QRCODE_MODULE_DPI + "\r\n");
-			printCmd.append("MA,").append(qrcode).append("\r\n");
-			printCmd.append("ENDQR\r\n");
-			yValue += qrCodeHeight;
-		}
+	// the caches are access ordered, so even a lookup changes them
+	private synchronized LabelTemplate templateFor(Label label) {
+		int qrModules = label.getQrModules();
 
-		if (strings != null) {
-			for(String str : strings) {
-				printCmd.append("TEXT 7 0 0 " + yValue + " " + str +  " \r\n");
-				yValue +=TEXT_HEIGHT_DPI;
-			}
+		int graphicHeight = label.getGraphicHeight();
+
+		String key = LabelTemplate.key(label.labelHeight, label.hasBarcode, qrModules, label.numStrings,
+				graphicHeight);
+		LabelTemplate template = templates.get(key);
+		if (template == null) {
+			template = LabelTemplate.compile(label.labelHeight, label.hasBarcode, qrModules,
+					label.numStrings, graphicHeight);
+			templates.put(key, template);
+			Log.d(TAG,"compiled label template, height: " + template.getLabelHeight());
 		}
+		return template;
+	}
 
-		printCmd.append("PRINT \r\n");
-		Log.d(TAG,"sendDataToSensor returning");
+	private synchronized LabelGraphic graphicFor(Label label) {
+		if (label.graphic == null) {
+			return null;
+		}
 
-		byte[] bytes = null;
-		try {
-			bytes = printCmd.toString().getBytes("UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
+		LabelGraphic graphic = graphics.get(label.graphicKey);
+		if (graphic == null) {
+			graphic = LabelGraphic.encode(label.graphic, label.graphicWidth);
+			graphics.put(label.graphicKey, graphic);
+			Log.d(TAG,"encoded graphic as " + (graphic.isPcx() ? "PCX" : "CG") + ", "
+					+ label.graphic.length + " to " + graphic.getEncodedSize() + " bytes");
 		}
-		return bytes;
+		return graphic;
 	}
 
 }
@@ -23,6 +23,9 @@ package org.opendatakit.sensors.drivers.zebra.bt;
  *
  */
 
+import java.util.List;
+
+import org.opendatakit.sensors.DataSeries;
 import org.opendatakit.sensors.service.BaseActivity;
 
 import android.app.AlertDialog;
@@ -36,6 +39,7 @@ import android.os.RemoteException;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.Toast;
 
 public class PrinterDriverActivity extends BaseActivity {
 
@@ -43,15 +47,16 @@ public class PrinterDriverActivity extends BaseActivity {
 
 	private static final String TAG = "PrintActivity";
 	private static final String PRINTER_ID_STR = "printerID";
-	private static final int SENSOR_CONNECTION_COUNTER = 10;
+	private static final long STATUS_TIMEOUT_MS = 2000;
+	private static final long STATUS_POLL_MS = 100;
 
+	// outlives the activity so queued labels survive it being recreated
+	private static final PrintSpooler spooler = new PrintSpooler();
 
 	private Button reconnectPrinterButton;
-	private String printerID = null;
+	private volatile String printerID = null;
 	static Bundle printDataBundle = null;
 
-	private ConnectionThread connectionThread;
-
 	@Override
 	public void onCreate(Bundle savedState) {
 		super.onCreate(savedState);
@@ -69,6 +74,14 @@ public class PrinterDriverActivity extends BaseActivity {
 				reconnectPrinterButton.setEnabled(true);
 			}
 		}
+
+		spooler.attach(printerLink, jobListener);
+	}
+
+	@Override
+	protected void onDestroy() {
+		spooler.attach(null, null);
+		super.onDestroy();
 	}
 
 	public void print(View view) {
@@ -79,19 +92,8 @@ public class PrinterDriverActivity extends BaseActivity {
 			return;
 		}
 
-		try {
-
-			if (!isConnected(printerID)) {
-				startConnectionThread();
-				return;
-			}
-
-			if(printDataBundle != null) {
-				sendDataToSensor(printerID, printDataBundle);
-			}
-		}
-		catch(RemoteException rex) {
-			rex.printStackTrace();
+		if(printDataBundle != null) {
+			spooler.submit(printDataBundle);
 		}
 	}
 
@@ -115,15 +117,6 @@ public class PrinterDriverActivity extends BaseActivity {
 		activityShutdownActions();
 	}
 
-	private void startConnectionThread() {
-		if(connectionThread != null && connectionThread.isAlive()) {
-			connectionThread.stopConnectionThread();
-		}
-
-		connectionThread = new ConnectionThread();
-		connectionThread.start();
-	}
-
 	private void showDiscoveryDialogMsg() {
 		final AlertDialog.Builder alert = new AlertDialog.Builder(this);
 
@@ -156,6 +149,8 @@ public class PrinterDriverActivity extends BaseActivity {
 
 	private void activityShutdownActions() {
 
+		spooler.attach(null, null);
+
 		try {
 			if(printerID != null)
 				stopSensor(printerID);
@@ -194,7 +189,11 @@ public class PrinterDriverActivity extends BaseActivity {
 						Log.e(TAG,"preferences commit failed for tempSensorID");
 
 					reconnectPrinterButton.setEnabled(true);
-					startConnectionThread();
+					// jobs left from an earlier instance were waiting for a printer
+					spooler.attach(printerLink, jobListener);
+					if(printDataBundle != null) {
+						spooler.submit(printDataBundle);
+					}
 				}
 				else {
 					Log.d(TAG,"activity result returned without sensorID");
@@ -203,66 +202,93 @@ public class PrinterDriverActivity extends BaseActivity {
 		}
 	}
 
-	private class ConnectionThread extends Thread {
-		private String TAG = "Printer ConnectionThread";
-		private boolean isConnThreadRunning = false;
-		private boolean isConnectedToSensor = false;
+	private final PrintSpooler.PrinterLink printerLink = new PrintSpooler.PrinterLink() {
 
-		public ConnectionThread() {
-			super("Printer Connection Thread");
+		// status replies only reach getSensorData once the sensor is started
+		private String startedPrinterID = null;
+
+		public boolean hasPrinter() {
+			return printerID != null;
 		}
 
-		@Override
-		public void start() {
-			isConnThreadRunning = true;
-			super.start();
+		public void connect() throws RemoteException {
+			sensorConnect(printerID, null);
 		}
 
-		public void stopConnectionThread() {
-			isConnThreadRunning = false;
+		public boolean isConnected() throws RemoteException {
+			return PrinterDriverActivity.this.isConnected(printerID);
+		}
 
-			try {
-				this.interrupt();
-				isConnectedToSensor = false;
-				Thread.sleep(250);
+		public Bundle queryStatus() throws RemoteException, InterruptedException {
+			String id = printerID;
+			if (!id.equals(startedPrinterID)) {
+				startSensor(id);
+				startedPrinterID = id;
 			}
-			catch(InterruptedException iex) {
-				Log.d(TAG,"stopConnectionThread got interrupted");
+
+			Bundle query = new Bundle();
+			query.putBoolean(PrinterDriver.STATUS_QUERY, true);
+			sendDataToSensor(id, query);
+
+			for (long waited = 0; waited < STATUS_TIMEOUT_MS; waited += STATUS_POLL_MS) {
+				Thread.sleep(STATUS_POLL_MS);
+				List<Bundle> data = getSensorData(id, 0);
+				Bundle status = null;
+				if (data != null) {
+					for (Bundle record : data) {
+						if (PrinterDriver.MSG_TYPE_STATUS.equals(record.getString(DataSeries.MSG_TYPE))) {
+							status = record;
+						}
+					}
+				}
+				if (status != null) {
+					return status;
+				}
 			}
+			Log.d(TAG,"no status reply from printer");
+			return null;
 		}
 
-		public void run() {
-			int connectCntr = 0;
-
-			try {
-				sensorConnect(printerID, null);
+		public void send(Bundle data) throws RemoteException {
+			sendDataToSensor(printerID, data);
+		}
+	};
 
-				while (isConnThreadRunning && (connectCntr++ < SENSOR_CONNECTION_COUNTER)) {
-					try {
+	private final PrintSpooler.JobListener jobListener = new PrintSpooler.JobListener() {
 
-						if(isConnected(printerID)) {
-							isConnectedToSensor = true;
-							break;
-						}
-						Log.d(TAG,"connectThread waiting to connect to sensor");
-						Thread.sleep(1000);
-					}
-					catch(InterruptedException iex) {
-						Log.d(TAG, "interrupted");
-					}
-				}
+		public void onJobStatus(final PrintSpooler.PrintJob job) {
+			Log.d(TAG,"print job " + job.id + " " + job.getStatus());
 
-				Log.d(TAG,"connectThread connect status: " + isConnectedToSensor);
+			final int msgId;
+			switch (job.getStatus()) {
+			case QUEUED:
+			case SENDING:
+				return;
+			case CONNECTING:
+				msgId = R.string.print_connecting;
+				break;
+			case WAITING:
+				msgId = R.string.print_waiting;
+				break;
+			case RETRYING:
+				msgId = R.string.print_retrying;
+				break;
+			case PRINTED:
+				msgId = R.string.print_done;
+				break;
+			default:
+				msgId = R.string.print_failed;
+				break;
+			}
 
-				if(isConnectedToSensor && printDataBundle != null) {
-					sendDataToSensor(printerID, printDataBundle);
+			runOnUiThread(new Runnable() {
+				public void run() {
+					Toast.makeText(PrinterDriverActivity.this, getString(msgId, job.id),
+							Toast.LENGTH_SHORT).show();
 				}
-			}
-			catch(RemoteException rex) {
-				rex.printStackTrace();
-			}
+			});
 		}
-	}
+	};
 
 public static class PrinterDataReceiver extends BroadcastReceiver {
 
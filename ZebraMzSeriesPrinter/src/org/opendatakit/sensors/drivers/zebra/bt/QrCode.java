@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.zebra.bt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks the smallest QR code version that holds a string and builds the
+ * CPCL manual mode data line that encodes it.
+ *
+ * The string is split into numeric, alphanumeric and byte (UTF-8)
+ * segments with the shortest total length, using the usual dynamic
+ * programme over the three modes. The split depends on the size of the
+ * character count fields, which changes at versions 10 and 27, so it is
+ * done once for each of the three version ranges. Sending the segments in
+ * manual mode means the printer draws exactly the symbol sized here, so the
+ * label height can be computed from the real module count.
+ *
+ * Capacities come from the ISO 18004 error correction block tables.
+ */
+final class QrCode {
+
+	static final String ECC_LEVELS = "LMQH";
+	static final char DEFAULT_ECC = 'M';
+
+	static final int MIN_VERSION = 1;
+	static final int MAX_VERSION = 40;
+
+	private static final int NUMERIC = 0;
+	private static final int ALPHANUMERIC = 1;
+	private static final int BYTE = 2;
+	private static final int NUM_MODES = 3;
+
+	private static final String ALPHANUMERIC_CHARS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ $%*+-./:";
+
+	// character count field bits per mode for versions 1-9, 10-26 and 27-40
+	private static final int[][] COUNT_BITS = {
+			{ 10, 12, 14 },
+			{ 9, 11, 13 },
+			{ 8, 16, 16 } };
+	private static final int[] RANGE_START = { 1, 10, 27 };
+	private static final int[] RANGE_END = { 9, 26, 40 };
+
+	// per ECC level L, M, Q, H and version 1 to 40
+	private static final int[][] ECC_CODEWORDS_PER_BLOCK = {
+			{ 7, 10, 15, 20, 26, 18, 20, 24, 30, 18, 20, 24, 26, 30, 22, 24, 28, 30, 28, 28,
+					28, 28, 30, 30, 26, 28, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30 },
+			{ 10, 16, 26, 18, 24, 16, 18, 22, 22, 26, 30, 22, 22, 24, 24, 28, 28, 26, 26, 26,
+					26, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28 },
+			{ 13, 22, 18, 26, 18, 24, 18, 22, 20, 24, 28, 26, 24, 20, 30, 24, 28, 28, 26, 30,
+					28, 30, 30, 30, 30, 28, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30 },
+			{ 17, 28, 22, 16, 22, 28, 26, 26, 24, 28, 24, 28, 22, 24, 24, 30, 28, 28, 26, 28,
+					30, 24, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30 } };
+	private static final int[][] ECC_BLOCKS = {
+			{ 1, 1, 1, 1, 1, 2, 2, 2, 2, 4, 4, 4, 4, 4, 6, 6, 6, 6, 7, 8,
+					8, 9, 9, 10, 12, 12, 12, 13, 14, 15, 16, 17, 18, 19, 19, 20, 21, 22, 24, 25 },
+			{ 1, 1, 1, 2, 2, 4, 4, 4, 5, 5, 5, 8, 9, 9, 10, 10, 11, 13, 14, 16,
+					17, 17, 18, 20, 21, 23, 25, 26, 28, 29, 31, 33, 35, 37, 38, 40, 43, 45, 47, 49 },
+			{ 1, 1, 2, 2, 4, 4, 6, 6, 8, 8, 8, 10, 12, 16, 12, 17, 16, 18, 21, 20,
+					23, 23, 25, 27, 29, 34, 34, 35, 38, 40, 43, 45, 48, 51, 53, 56, 59, 62, 65, 68 },
+			{ 1, 1, 2, 4, 4, 4, 5, 6, 8, 8, 11, 11, 16, 16, 18, 16, 19, 21, 25, 25,
+					25, 34, 30, 32, 35, 37, 40, 42, 45, 48, 51, 54, 57, 60, 63, 66, 70, 74, 77, 81 } };
+
+	// data bits per ECC level and version, filled in once from the tables
+	private static final int[][] DATA_BITS = new int[ECC_LEVELS.length()][MAX_VERSION + 1];
+
+	static {
+		for (int version = MIN_VERSION; version <= MAX_VERSION; version++) {
+			int modules = (16 * version + 128) * version + 64;
+			if (version >= 2) {
+				int numAlign = version / 7 + 2;
+				modules -= (25 * numAlign - 10) * numAlign - 55;
+				if (version >= 7) {
+					modules -= 36;
+				}
+			}
+			int codewords = modules / 8;
+			for (int ecc = 0; ecc < ECC_LEVELS.length(); ecc++) {
+				int eccCodewords = ECC_CODEWORDS_PER_BLOCK[ecc][version - 1] * ECC_BLOCKS[ecc][version - 1];
+				DATA_BITS[ecc][version] = (codewords - eccCodewords) * 8;
+			}
+		}
+	}
+
+	private final int version;
+	private final String dataLine;
+
+	private QrCode(int version, String dataLine) {
+		this.version = version;
+		this.dataLine = dataLine;
+	}
+
+	/**
+	 * @param ecc error correction level, one of ECC_LEVELS
+	 * @return the smallest code holding data, or null if data is too long
+	 *         for any version at that level
+	 */
+	static QrCode encode(String data, char ecc) {
+		int eccIndex = ECC_LEVELS.indexOf(ecc);
+		if (eccIndex < 0) {
+			eccIndex = ECC_LEVELS.indexOf(DEFAULT_ECC);
+			ecc = DEFAULT_ECC;
+		}
+
+		int[] codePoints = toCodePoints(data);
+		for (int range = 0; range < RANGE_START.length; range++) {
+			int[] modes = segment(codePoints, range);
+			List<int[]> segments = runs(modes);
+			int bits = bitLength(codePoints, segments, range);
+			if (bits < 0) {
+				continue;
+			}
+			for (int version = RANGE_START[range]; version <= RANGE_END[range]; version++) {
+				if (bits <= DATA_BITS[eccIndex][version]) {
+					return new QrCode(version, dataLine(data, codePoints, segments, ecc));
+				}
+			}
+		}
+		return null;
+	}
+
+	int getVersion() {
+		return version;
+	}
+
+	int getModules() {
+		return 17 + 4 * version;
+	}
+
+	/**
+	 * @return the line following the BARCODE QR command, error correction
+	 *         level, manual input and the segments
+	 */
+	String getDataLine() {
+		return dataLine;
+	}
+
+	private static int[] toCodePoints(String data) {
+		int[] codePoints = new int[data.codePointCount(0, data.length())];
+		for (int i = 0, offset = 0; i < codePoints.length; i++) {
+			codePoints[i] = data.codePointAt(offset);
+			offset += Character.charCount(codePoints[i]);
+		}
+		return codePoints;
+	}
+
+	private static int utf8Length(int codePoint) {
+		return (codePoint < 0x80) ? 1 : (codePoint < 0x800) ? 2 : (codePoint < 0x10000) ? 3 : 4;
+	}
+
+	private static boolean isNumeric(int codePoint) {
+		return codePoint >= '0' && codePoint <= '9';
+	}
+
+	private static boolean isAlphanumeric(int codePoint) {
+		return codePoint < 0x80 && ALPHANUMERIC_CHARS.indexOf(codePoint) >= 0;
+	}
+
+	/**
+	 * Shortest path over the modes, one step per character. Costs are in
+	 * sixths of a bit so numeric (10 bits per 3) and alphanumeric (11 bits
+	 * per 2) characters have whole costs; a mode switch rounds up to whole
+	 * bits and pays the new segment header.
+	 *
+	 * @return the mode of each character
+	 */
+	private static int[] segment(int[] codePoints, int range) {
+		int n = codePoints.length;
+		int[] headCosts = new int[NUM_MODES];
+		for (int mode = 0; mode < NUM_MODES; mode++) {
+			headCosts[mode] = (4 + COUNT_BITS[mode][range]) * 6;
+		}
+
+		// from[i][mode] is the mode of character i-1 on the best path that has
+		// character i in mode, -1 if character i can't be in mode
+		int[][] from = new int[n][NUM_MODES];
+		int[] prevCosts = headCosts.clone();
+		int[] curCosts = new int[NUM_MODES];
+		boolean[] prevValid = { true, true, true };
+
+		for (int i = 0; i < n; i++) {
+			int c = codePoints[i];
+			boolean[] valid = { isNumeric(c), isAlphanumeric(c), true };
+			int[] charCost = { 20, 33, utf8Length(c) * 8 * 6 };
+
+			for (int mode = 0; mode < NUM_MODES; mode++) {
+				from[i][mode] = -1;
+				curCosts[mode] = Integer.MAX_VALUE;
+				if (!valid[mode]) {
+					continue;
+				}
+				for (int prev = 0; prev < NUM_MODES; prev++) {
+					if (!prevValid[prev]) {
+						continue;
+					}
+					int cost = prevCosts[prev];
+					if (prev != mode && i > 0) {
+						cost = (cost + 5) / 6 * 6 + headCosts[mode];
+					} else if (i == 0) {
+						cost = headCosts[mode];
+					}
+					if (cost < curCosts[mode]) {
+						curCosts[mode] = cost;
+						from[i][mode] = (i == 0) ? mode : prev;
+					}
+				}
+				curCosts[mode] += charCost[mode];
+			}
+
+			System.arraycopy(curCosts, 0, prevCosts, 0, NUM_MODES);
+			prevValid = valid;
+		}
+
+		int[] modes = new int[n];
+		if (n == 0) {
+			return modes;
+		}
+		int mode = BYTE;
+		for (int m = 0; m < NUM_MODES; m++) {
+			if (prevValid[m] && prevCosts[m] < prevCosts[mode]) {
+				mode = m;
+			}
+		}
+		for (int i = n - 1; i >= 0; i--) {
+			modes[i] = mode;
+			mode = from[i][mode];
+		}
+		return modes;
+	}
+
+	/**
+	 * @return runs of the same mode as { mode, first index, end index }
+	 */
+	private static List<int[]> runs(int[] modes) {
+		List<int[]> segments = new ArrayList<int[]>();
+		int start = 0;
+		for (int i = 1; i <= modes.length; i++) {
+			if (i == modes.length || modes[i] != modes[start]) {
+				segments.add(new int[] { modes[start], start, i });
+				start = i;
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * @return exact number of data bits, or -1 if a segment is too long for
+	 *         its character count field in this version range
+	 */
+	private static int bitLength(int[] codePoints, List<int[]> segments, int range) {
+		int bits = 0;
+		for (int[] seg : segments) {
+			int count = seg[2] - seg[1];
+			if (seg[0] == BYTE) {
+				count = 0;
+				for (int i = seg[1]; i < seg[2]; i++) {
+					count += utf8Length(codePoints[i]);
+				}
+			}
+			int countBits = COUNT_BITS[seg[0]][range];
+			if (count >= (1 << countBits)) {
+				return -1;
+			}
+			bits += 4 + countBits;
+			switch (seg[0]) {
+			case NUMERIC:
+				bits += 10 * (count / 3) + ((count % 3 == 2) ? 7 : (count % 3 == 1) ? 4 : 0);
+				break;
+			case ALPHANUMERIC:
+				bits += 11 * (count / 2) + 6 * (count % 2);
+				break;
+			default:
+				bits += 8 * count;
+				break;
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * Manual input: N numeric, A alphanumeric, B with a four digit byte
+	 * count for everything else, segments separated by commas.
+	 */
+	private static String dataLine(String data, int[] codePoints, List<int[]> segments, char ecc) {
+		StringBuilder line = new StringBuilder(data.length() + 8 * segments.size());
+		line.append(ecc).append("M");
+		for (int[] seg : segments) {
+			line.append(',');
+			int begin = data.offsetByCodePoints(0, seg[1]);
+			int end = data.offsetByCodePoints(begin, seg[2] - seg[1]);
+			if (seg[0] == NUMERIC) {
+				line.append('N');
+			} else if (seg[0] == ALPHANUMERIC) {
+				line.append('A');
+			} else {
+				int bytes = 0;
+				for (int i = seg[1]; i < seg[2]; i++) {
+					bytes += utf8Length(codePoints[i]);
+				}
+				line.append('B');
+				String count = Integer.toString(bytes);
+				for (int pad = count.length(); pad < 4; pad++) {
+					line.append('0');
+				}
+				line.append(count);
+			}
+			line.append(data, begin, end);
+		}
+		return line.toString();
+	}
+}
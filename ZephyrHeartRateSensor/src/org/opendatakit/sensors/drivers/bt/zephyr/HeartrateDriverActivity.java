@@ -22,7 +22,6 @@ import org.opendatakit.sensors.service.BaseActivity;
 
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.util.Log;
@@ -55,7 +54,9 @@ import android.widget.TextView;
  * 3) configure(...): Sensors often have configurable parameters, this call allows configuration of these parameters. This is an 
  * optional call.
  * 4) startSensor(...): ODKSensors starts collecting data from the sensor after this method call.
- * 5) getSensorData(...): Activities call this method periodically to get sensor data from the framework.
+ * 5) getSensorData(...): Activities call this method periodically to get sensor data from the framework. Here 
+ * SensorDataSubscription does the polling on a background thread, and the readings are reduced to what the 
+ * screen shows before UiHandoff applies them on the UI thread, once per display frame.
  * 6) stopSensor(...): ODKSensors stops collecting data from the sensor after this method call.
  *  
  */
@@ -64,17 +65,27 @@ public class HeartrateDriverActivity extends BaseActivity {
 	private static final String HR_SENSOR_ID_STR = "ZEPHYR_SENSOR_ID";
 	private static final String TAG = "SensorDriverActivity";
 	private static final int SENSOR_CONNECTION_COUNTER = 10;
+	// the driver stops parsing here and keeps the rest for the next poll
+	private static final int MAX_READINGS_PER_POLL = 25;
+	// the sensor reports about once a second; poll faster while beats arrive
+	private static final long MIN_POLL_INTERVAL_MS = 100;
+	private static final long MAX_POLL_INTERVAL_MS = 2000;
 	
 	//each physical sensor has a unique sensorID. Activities use this sensorID to communicate with sensors via the framework.
-	private String sensorID = null;
+	private volatile String sensorID = null;
 	
-	private boolean isConnectedToSensor = false;
+	private volatile boolean isConnectedToSensor = false;
 	
 	private boolean isStarted = false;
 	
 	private volatile int heartRate, beatCount;
 	
-	private DataProcessor sensorDataProcessor;
+	private SensorDataSubscription sensorDataSubscription;
+	
+	private UiHandoff<HeartRateDisplay> heartRateHandoff;
+	
+	// what heartRateField currently shows, only touched on the UI thread
+	private String shownHeartRate = null;
 	
 	private Button connectButton, startButton, recordButton;
 	
@@ -104,13 +115,15 @@ public class HeartrateDriverActivity extends BaseActivity {
 			}
 		}
 		
+		heartRateHandoff = new UiHandoff<HeartRateDisplay>(heartRateRenderer);
+		sensorDataSubscription = new SensorDataSubscription(sensorDataSource, sensorDataListener,
+				MIN_POLL_INTERVAL_MS, MAX_POLL_INTERVAL_MS, MAX_READINGS_PER_POLL);
 	}
 	
 	protected void onResume() {
 		super.onResume();
 		
-		sensorDataProcessor = new DataProcessor();
-		sensorDataProcessor.execute();
+		sensorDataSubscription.start();
 		
 		connectButton.setEnabled(false);
 		startButton.setEnabled(false);	
@@ -136,7 +149,7 @@ public class HeartrateDriverActivity extends BaseActivity {
 	
     protected void onPause() {
         super.onPause();
-		sensorDataProcessor.cancel(true);
+		sensorDataSubscription.stop();
     }
 	
 	public void connectAction(View view) {
@@ -170,6 +183,7 @@ public class HeartrateDriverActivity extends BaseActivity {
 		startButton.setEnabled(false);
 		recordButton.setEnabled(true);
 		isStarted = true;
+		sensorDataSubscription.wake();
 		
 	}
 	
@@ -262,55 +276,58 @@ public class HeartrateDriverActivity extends BaseActivity {
 		connectionThread.start();
 	}
 	
-	private void processData() {
-
-		if (!isConnectedToSensor) {
-			return;
-		}				
-
-		runOnUiThread(new Runnable() {
-			public void run() {
-				List<Bundle> sensorDataBundles = null;
-
-				try {
-					Log.d(TAG,"getSensorData");
-					
-					//call the getSensorData method periodically to get sensor data as key-value pairs from ODKSenors
-					sensorDataBundles = getSensorData(sensorID, 1);
-				}
-				catch(RemoteException rex) {
-					rex.printStackTrace();
-				}
+	private final SensorDataSubscription.Source sensorDataSource = new SensorDataSubscription.Source() {
+		public List<Bundle> fetch(long maxNumReadings) throws RemoteException {
+			if (!isConnectedToSensor) {
+				return null;
+			}
 
-				if(sensorDataBundles != null) {
-					for(Bundle aBundle : sensorDataBundles) {
-						
-						//retrieve sensor data from each bundle and store it locally. 
-						
-						heartRate = aBundle.getInt(HeartrateDriverImpl.HEART_RATE);
-						beatCount = aBundle.getInt(HeartrateDriverImpl.BEAT_COUNT);
-						
-						//update UI
-						heartRateField.setText(String.valueOf(heartRate));
-					}
-				}
+			Log.d(TAG,"getSensorData");
+			
+			//getSensorData returns sensor data as key-value pairs from ODKSenors
+			return getSensorData(sensorID, maxNumReadings);
+		}
+	};
+	
+	/*
+	 * Runs on the polling thread. Only the last reading of a batch ends up on screen, so that is all 
+	 * that is passed on to the UI thread.
+	 */
+	private final SensorDataSubscription.Listener sensorDataListener = new SensorDataSubscription.Listener() {
+		public void onSensorData(List<Bundle> sensorDataBundles) {
+			if (sensorDataBundles.isEmpty()) {
+				return;
 			}
-		});
-	}
+			
+			//retrieve sensor data from the latest bundle and store it locally. 
+			Bundle aBundle = sensorDataBundles.get(sensorDataBundles.size() - 1);
+			heartRate = aBundle.getInt(HeartrateDriverImpl.HEART_RATE);
+			beatCount = aBundle.getInt(HeartrateDriverImpl.BEAT_COUNT);
+			
+			heartRateHandoff.publish(new HeartRateDisplay(heartRate));
+		}
+	};
 	
-	private class DataProcessor extends AsyncTask<Void, Void, Void> {
-
-		@Override
-		protected Void doInBackground(Void... params) {
-			while (!isCancelled()) {
-				processData();
-				try {
-					Thread.sleep(1000);
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
+	private final UiHandoff.Renderer<HeartRateDisplay> heartRateRenderer = new UiHandoff.Renderer<HeartRateDisplay>() {
+		public void render(HeartRateDisplay display) {
+			//update UI, skipping the layout pass when the rate hasn't changed
+			String text = String.valueOf(display.heartRate);
+			if (!text.equals(shownHeartRate)) {
+				heartRateField.setText(text);
+				shownHeartRate = text;
 			}
-			return null;
+		}
+	};
+	
+	private static class HeartRateDisplay implements UiHandoff.State<HeartRateDisplay> {
+		private final int heartRate;
+		
+		HeartRateDisplay(int heartRate) {
+			this.heartRate = heartRate;
+		}
+		
+		public HeartRateDisplay mergeWith(HeartRateDisplay newer) {
+			return newer;
 		}
 	}
 	
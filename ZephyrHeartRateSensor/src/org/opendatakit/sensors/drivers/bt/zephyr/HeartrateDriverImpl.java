@@ -96,9 +96,11 @@ public class HeartrateDriverImpl extends AbstractDriverBaseV2  {
 			}			
 		}
 
-		// Parse all data into packet sizes of 60 bytes
+		// Parse all data into packet sizes of 60 bytes, stopping at
+		// maxNumReadings (0 or less means no limit); the rest stays in the buffer
 		int masked;
-		while (dataBuffer.size() >= ZEPHYR_PDU_SIZE) {
+		while (dataBuffer.size() >= ZEPHYR_PDU_SIZE
+				&& (maxNumReadings <= 0 || allData.size() < maxNumReadings)) {
 			Log.d(TAG,"dataBuffer size: " + dataBuffer.size());	
 			Bundle parsedPkt = new Bundle();
 			allData.add(parsedPkt);
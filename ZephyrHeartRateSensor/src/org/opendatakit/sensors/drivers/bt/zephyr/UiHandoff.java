@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.bt.zephyr;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Hands display state from the polling thread to the UI thread. There is one
+ * slot: the producer publishes into it and the UI thread takes whatever is
+ * there when it gets round to it. If the UI has not taken the last state yet
+ * the new one is merged into it rather than queued, so however many polls
+ * land between two UI passes the UI thread applies one state.
+ *
+ * Passes run at the start of a display frame via Choreographer, so there is
+ * at most one per frame. Choreographer needs Jelly Bean; on older devices
+ * passes go through the Handler instead, spaced a frame apart.
+ *
+ * Only one thread may publish and only the UI thread consumes.
+ */
+class UiHandoff<S extends UiHandoff.State<S>> {
+
+	interface State<S> {
+		/**
+		 * @return this state with a newer one applied over it
+		 */
+		S mergeWith(S newer);
+	}
+
+	interface Renderer<S> {
+		/**
+		 * Called on the UI thread.
+		 */
+		void render(S state);
+	}
+
+	private final Renderer<S> renderer;
+	private final FramePoster framePoster;
+	private final AtomicReference<S> slot = new AtomicReference<S>();
+	private final AtomicBoolean applyPosted = new AtomicBoolean(false);
+
+	/**
+	 * Must be created on the UI thread.
+	 */
+	UiHandoff(Renderer<S> renderer) {
+		this.renderer = renderer;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			framePoster = new ChoreographerFramePoster(apply);
+		} else {
+			framePoster = new HandlerFramePoster(apply);
+		}
+	}
+
+	void publish(S state) {
+		// the UI thread only ever empties the slot, so with one producer
+		// nothing can land in it between taking and putting back
+		S pending = slot.getAndSet(null);
+		if (pending != null) {
+			state = pending.mergeWith(state);
+		}
+		slot.set(state);
+
+		if (applyPosted.compareAndSet(false, true)) {
+			framePoster.post();
+		}
+	}
+
+	private final Runnable apply = new Runnable() {
+		public void run() {
+			// clear the flag first so a state published after the take
+			// below gets a pass of its own
+			applyPosted.set(false);
+			S state = slot.getAndSet(null);
+			if (state != null) {
+				renderer.render(state);
+			}
+		}
+	};
+
+	private interface FramePoster {
+		/**
+		 * Run the pass on the UI thread at the next frame. Safe to call from
+		 * any thread.
+		 */
+		void post();
+	}
+
+	private static class ChoreographerFramePoster implements FramePoster, Choreographer.FrameCallback {
+		// the UI thread's, postFrameCallback itself may be called from any thread
+		private final Choreographer choreographer = Choreographer.getInstance();
+		private final Runnable pass;
+
+		ChoreographerFramePoster(Runnable pass) {
+			this.pass = pass;
+		}
+
+		public void post() {
+			choreographer.postFrameCallback(this);
+		}
+
+		public void doFrame(long frameTimeNanos) {
+			pass.run();
+		}
+	}
+
+	private static class HandlerFramePoster implements FramePoster {
+		private static final long FRAME_MS = 16;
+
+		private final Handler handler = new Handler();
+		private final Runnable pass;
+		private volatile long lastPass = 0;
+
+		HandlerFramePoster(Runnable pass) {
+			this.pass = pass;
+		}
+
+		public void post() {
+			long delay = lastPass + FRAME_MS - SystemClock.uptimeMillis();
+			handler.postDelayed(timedPass, Math.max(delay, 0));
+		}
+
+		private final Runnable timedPass = new Runnable() {
+			public void run() {
+				lastPass = SystemClock.uptimeMillis();
+				pass.run();
+			}
+		};
+	}
+}